@@ -0,0 +1,100 @@
+package com.einmalfel.podlisten;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Re-binding a list element to unchanged episode should not allocate, as it happens for every
+ * visible element on each list update.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EpisodeViewHolderAllocationTest {
+  private static final int REBINDS = 10;
+  // real ids are url hashes, they don't fit Long.valueOf cache
+  private static final long ID = PodcastHelper.generateId(
+      "http://localhost/podlisten-allocation-test.mp3");
+  private static final long PID = PodcastHelper.generateId(
+      "http://localhost/podlisten-allocation-test.rss");
+
+  private static void bind(EpisodeViewHolder holder) {
+    holder.bindEpisode("Title", "<p>Description</p>", ID, PID, 12345678,
+                       Provider.ESTATE_IN_PLAYLIST, "Feed", 600000, 3600000,
+                       System.currentTimeMillis(), Provider.EDFIN_COMPLETE, "Description", null,
+                       PlayerService.State.STOPPED, "http://example.com/episode", 0,
+                       "http://example.com/episode.mp3", false);
+  }
+
+  private static int countRebindAllocations() {
+    final int[] allocations = new int[1];
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        Context context = new ContextThemeWrapper(InstrumentationRegistry.getTargetContext(),
+                                                  R.style.PodlistenMain);
+        View view = LayoutInflater.from(context).inflate(
+            R.layout.episode_list_element, new FrameLayout(context), false);
+        EpisodeListAdapter.ItemClickListener listener = new EpisodeListAdapter.ItemClickListener() {
+          @Override
+          public boolean onLongTap(long id, String title, int state, String audioUrl,
+                                   int downloaded) {
+            return false;
+          }
+
+          @Override
+          public void onButtonTap(long id, String title, int state, String audioUrl,
+                                  int downloaded) {}
+        };
+        EpisodeViewHolder holder = new EpisodeViewHolder(
+            context, view, listener, new EpisodeListAdapter(null, listener));
+        bind(holder); // initial bind
+        bind(holder); // warm up lazily initialized framework state
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < REBINDS; i++) {
+          bind(holder);
+        }
+        Debug.stopAllocCounting();
+        allocations[0] = Debug.getThreadAllocCount();
+      }
+    });
+    return allocations[0];
+  }
+
+  @Test
+  public void rebindWithoutImagesDoesNotAllocate() {
+    assertEquals("Objects allocated by " + REBINDS + " re-binds", 0, countRebindAllocations());
+  }
+
+  @Test
+  public void rebindWithFeedImageDoesNotAllocate() {
+    Storage storage = Preferences.getInstance().getStorage();
+    assumeTrue(storage != null && storage.isAvailableRw());
+    ImageManager imageManager = ImageManager.getInstance();
+    Bitmap bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+    bitmap.eraseColor(Color.MAGENTA);
+    imageManager.store(PID, bitmap);
+    try {
+      // episode itself has no image, which is the common case
+      assertNotNull(imageManager.getImageHash(PID));
+      assertEquals("Objects allocated by " + REBINDS + " re-binds", 0, countRebindAllocations());
+    } finally {
+      imageManager.deleteImage(PID);
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package com.einmalfel.podlisten;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ServiceTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hammers PlayerService control calls from several threads, while listener and readers use
+ * lock-free getters. Checks that calls don't deadlock and that every observed state snapshot is
+ * consistent. Plays a silent WAV file through a temporary episode, which is removed afterwards.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlayerServiceStressTest {
+  private static final int CONTROL_THREADS = 4;
+  private static final int ITERATIONS = 300;
+  private static final long TIMEOUT_S = 120;
+  private static final int SAMPLE_RATE = 8000;
+  private static final int LENGTH_MS = 60000;
+  private static final long PODCAST_ID = PodcastHelper.generateId(
+      "http://localhost/podlisten-stress-test.rss");
+  private static final long EPISODE_ID = PodcastHelper.generateId(
+      "http://localhost/podlisten-stress-test.wav");
+
+  @Rule
+  public final ServiceTestRule serviceRule = new ServiceTestRule();
+  private final AtomicReference<String> failure = new AtomicReference<>();
+  private Context context;
+  private SharedPreferences preferences;
+  private String savedCompleteAction;
+  private File media;
+  private PlayerService service;
+
+  @Before
+  public void setUp() throws IOException, TimeoutException, InterruptedException {
+    context = InstrumentationRegistry.getTargetContext();
+    Storage storage = Preferences.getInstance().getStorage();
+    assumeTrue(storage != null && storage.isAvailableRw());
+
+    // with other complete actions playback may advance to (and delete) real playlist episodes
+    preferences = context.getSharedPreferences(context.getPackageName() + "_preferences",
+                                               Context.MODE_MULTI_PROCESS);
+    String key = Preferences.Key.COMPLETE_ACTION.toString();
+    savedCompleteAction = preferences.getString(key, null);
+    preferences.edit()
+               .putString(key, Integer.toString(Preferences.CompleteAction.DO_NOTHING.ordinal()))
+               .commit();
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+    while (Preferences.getInstance().getCompleteAction() != Preferences.CompleteAction.DO_NOTHING
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    media = new File(storage.getPodcastDir(), Long.toString(EPISODE_ID));
+    writeSilence(media);
+    ContentValues podcast = new ContentValues();
+    podcast.put(Provider.K_ID, PODCAST_ID);
+    podcast.put(Provider.K_PNAME, "Stress test");
+    context.getContentResolver().insert(Provider.podcastUri, podcast);
+    ContentValues episode = new ContentValues();
+    episode.put(Provider.K_ID, EPISODE_ID);
+    episode.put(Provider.K_EPID, PODCAST_ID);
+    episode.put(Provider.K_ENAME, "Stress test");
+    episode.put(Provider.K_EDATE, System.currentTimeMillis());
+    episode.put(Provider.K_ESTATE, Provider.ESTATE_IN_PLAYLIST);
+    episode.put(Provider.K_EDFIN, Provider.EDFIN_COMPLETE);
+    episode.put(Provider.K_ELENGTH, LENGTH_MS);
+    episode.put(Provider.K_EPLAYED, 0);
+    episode.put(Provider.K_ESIZE, media.length());
+    context.getContentResolver().insert(Provider.episodeUri, episode);
+
+    PlayerService.LocalBinder binder = (PlayerService.LocalBinder) serviceRule.bindService(
+        new Intent(context, PlayerService.class));
+    service = binder.getService();
+  }
+
+  @After
+  public void tearDown() {
+    if (service != null) {
+      service.stop();
+    }
+    if (preferences != null) {
+      String key = Preferences.Key.COMPLETE_ACTION.toString();
+      if (savedCompleteAction == null) {
+        preferences.edit().remove(key).commit();
+      } else {
+        preferences.edit().putString(key, savedCompleteAction).commit();
+      }
+    }
+    if (media != null) {
+      context.getContentResolver().delete(
+          Provider.getUri(Provider.T_EPISODE, EPISODE_ID), null, null);
+      context.getContentResolver().delete(
+          Provider.getUri(Provider.T_PODCAST, PODCAST_ID), null, null);
+      if (media.exists() && !media.delete()) {
+        throw new AssertionError("Failed to delete " + media);
+      }
+    }
+  }
+
+  @Test
+  public void concurrentControlCalls() throws InterruptedException {
+    PlayerService.PlayerStateListener listener = new PlayerService.PlayerStateListener() {
+      @Override
+      public void progressUpdate(int position, int max) {
+        if (max > 0 && position > max) {
+          fail("Progress update " + position + " exceeds length " + max);
+        }
+        check(service.getSnapshot());
+        if (service.getProgress() < 0) {
+          fail("Negative progress " + service.getProgress());
+        }
+      }
+
+      @Override
+      public void stateUpdate(PlayerService.State state, long episodeId) {
+        if (state == PlayerService.State.PLAYING && episodeId == 0) {
+          fail("State update PLAYING without episode");
+        }
+        if (service.getState() == null) {
+          fail("Null state");
+        }
+      }
+    };
+    service.addListener(listener);
+    assertTrue(service.playEpisode(EPISODE_ID));
+
+    final CountDownLatch controlThreads = new CountDownLatch(CONTROL_THREADS);
+    ExecutorService executor = Executors.newFixedThreadPool(CONTROL_THREADS + 1);
+    for (int thread = 0; thread < CONTROL_THREADS; thread++) {
+      final Random random = new Random(thread);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < ITERATIONS && failure.get() == null; i++) {
+              control(random);
+              check(service.getSnapshot());
+              if (random.nextBoolean()) {
+                Thread.yield();
+              }
+            }
+          } finally {
+            controlThreads.countDown();
+          }
+        }
+      });
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        while (controlThreads.getCount() > 0 && failure.get() == null) {
+          check(service.getSnapshot());
+          service.getState();
+          service.getProgress();
+        }
+      }
+    });
+    executor.shutdown();
+    assertTrue("Control calls didn't complete in " + TIMEOUT_S + "s, deadlock?",
+               executor.awaitTermination(TIMEOUT_S, TimeUnit.SECONDS));
+
+    service.rmListener(listener);
+    assertNull(failure.get());
+
+    // event loop should still be alive. Newly added listener always gets current state
+    service.stop();
+    final CountDownLatch stopped = new CountDownLatch(1);
+    PlayerService.PlayerStateListener probe = new PlayerService.PlayerStateListener() {
+      @Override
+      public void progressUpdate(int position, int max) {}
+
+      @Override
+      public void stateUpdate(PlayerService.State state, long episodeId) {
+        if (state == PlayerService.State.STOPPED) {
+          stopped.countDown();
+        }
+      }
+    };
+    service.addListener(probe);
+    assertTrue("Event loop didn't deliver state, deadlock?", stopped.await(10, TimeUnit.SECONDS));
+    service.rmListener(probe);
+  }
+
+  private void control(@NonNull Random random) {
+    switch (random.nextInt(4)) {
+      case 0:
+        service.playPauseResume();
+        break;
+      case 1:
+        service.seek(random.nextInt(LENGTH_MS));
+        break;
+      case 2:
+        service.jumpForward();
+        break;
+      default:
+        // stop rarely, otherwise player spends most of the time preparing
+        if (random.nextInt(10) == 0) {
+          service.stop();
+        }
+        break;
+    }
+  }
+
+  private void check(@Nullable PlayerService.Snapshot snapshot) {
+    if (snapshot == null) {
+      fail("Null snapshot");
+    } else if (snapshot.state == PlayerService.State.PLAYING && snapshot.episodeId == 0) {
+      fail("PLAYING snapshot without episode");
+    } else if (snapshot.length > 0 && snapshot.progress > snapshot.length) {
+      fail("Snapshot progress " + snapshot.progress + " exceeds length " + snapshot.length);
+    } else if (snapshot.progress < 0) {
+      fail("Negative snapshot progress " + snapshot.progress);
+    }
+  }
+
+  private void fail(@NonNull String message) {
+    failure.compareAndSet(null, message);
+  }
+
+  /**
+   * Writes LENGTH_MS of 16-bit mono PCM silence in WAV container
+   */
+  private static void writeSilence(@NonNull File file) throws IOException {
+    int dataSize = SAMPLE_RATE * 2 * (LENGTH_MS / 1000);
+    ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+    header.put("RIFF".getBytes("US-ASCII")).putInt(36 + dataSize)
+          .put("WAVEfmt ".getBytes("US-ASCII")).putInt(16)
+          .putShort((short) 1).putShort((short) 1) // PCM, mono
+          .putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2)
+          .putShort((short) 2).putShort((short) 16)
+          .put("data".getBytes("US-ASCII")).putInt(dataSize);
+    FileOutputStream stream = new FileOutputStream(file);
+    try {
+      stream.write(header.array());
+      stream.write(new byte[dataSize]);
+    } finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.einmalfel.podlisten;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Detects container format of downloaded file by its magic number.
+ * Reads only the head of the file, so it's cheap regardless of file size.
+ */
+class AudioSniffer {
+  enum Container {
+    MP3, MP4, OGG, FLAC, RIFF,
+    MARKUP, // HTML, XML or whitespaces, i.e. server responded with a web page instead of audio
+    UNKNOWN
+  }
+
+  private static final String TAG = "SNF";
+  private static final int HEAD_SIZE = 4096;
+
+  private AudioSniffer() {}
+
+  @NonNull
+  static Container sniff(@NonNull File file) throws IOException {
+    byte[] head = new byte[HEAD_SIZE];
+    int length = 0;
+    InputStream stream = new FileInputStream(file);
+    try {
+      int read;
+      while (length < head.length && (read = stream.read(head, length, head.length - length)) > 0) {
+        length += read;
+      }
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, "Failed to close stream", exception);
+      }
+    }
+    return sniff(head, length);
+  }
+
+  @NonNull
+  static Container sniff(@NonNull byte[] head, int length) {
+    if (startsWith(head, length, 0, "ID3")) {
+      return Container.MP3;
+    } else if (startsWith(head, length, 4, "ftyp")) {
+      return Container.MP4;
+    } else if (startsWith(head, length, 0, "OggS")) {
+      return Container.OGG;
+    } else if (startsWith(head, length, 0, "fLaC")) {
+      return Container.FLAC;
+    } else if (startsWith(head, length, 0, "RIFF")) {
+      return Container.RIFF;
+    } else if (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xE0) == 0xE0) {
+      return Container.MP3; // MPEG audio frame sync without ID3 tag
+    }
+
+    // markup may start with UTF-8 BOM and whitespaces. Whitespace-only body isn't audio either
+    int offset = length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB
+        && (head[2] & 0xFF) == 0xBF ? 3 : 0;
+    while (offset < length && Character.isWhitespace((char) head[offset])) {
+      offset++;
+    }
+    if (offset == length || head[offset] == '<') {
+      return Container.MARKUP;
+    }
+    return Container.UNKNOWN;
+  }
+
+  /** signature characters are treated as ISO-8859-1 bytes */
+  private static boolean startsWith(@NonNull byte[] data, int length, int offset,
+                                    @NonNull String signature) {
+    if (offset + signature.length() > length) {
+      return false;
+    }
+    for (int i = 0; i < signature.length(); i++) {
+      if ((data[offset + i] & 0xFF) != signature.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -2,24 +2,40 @@ package com.einmalfel.podlisten;
 
 import android.app.DownloadManager;
 import android.app.IntentService;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.media.MediaMetadataRetriever;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.PrintWriter;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class BackgroundOperations extends IntentService {
@@ -27,20 +43,108 @@ public class BackgroundOperations extends IntentService {
 
   private static final String ACTION_CLEANUP_EPISODES = "com.einmalfel.podlisten.CLEANUP_EPISODES";
   private static final String ACTION_HANDLE_DOWNLOADS = "com.einmalfel.podlisten.HANDLE_DOWNLOADS";
+  private static final String ACTION_ENFORCE_QUOTA = "com.einmalfel.podlisten.ENFORCE_QUOTA";
 
   private static final String EXTRA_EPISODE_STATE = "com.einmalfel.podlisten.EPISODE_STATE";
 
+  private static final long COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+  // moving is IO bound and duration probing reads file heads only, a few threads are enough
+  private static final int PROCESSING_THREADS = 3;
+
+  // Duplicate requests are coalesced: if an intent has a later intent with the same work key
+  // queued behind it, it's skipped, as the later one will do the same work on fresher data.
+  // Counters of skipped intents live as long as the process, they are logged and dumped
+  private static final Map<String, Integer> droppedDuplicates = new HashMap<>();
+  // number of queued intents per work key
+  private final Map<String, Integer> pending = new HashMap<>();
+
+  private ExecutorService processingExecutor;
+
   public BackgroundOperations() {
     super("BackgroundOperations");
     setIntentRedelivery(true);
   }
 
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    processingExecutor = Executors.newFixedThreadPool(PROCESSING_THREADS);
+  }
+
+  @Override
+  public void onDestroy() {
+    processingExecutor.shutdown();
+    super.onDestroy();
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    if (intent != null) {
+      String key = getWorkKey(intent);
+      synchronized (pending) {
+        Integer count = pending.get(key);
+        pending.put(key, count == null ? 1 : count + 1);
+      }
+    }
+    return super.onStartCommand(intent, flags, startId);
+  }
+
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    synchronized (droppedDuplicates) {
+      writer.println("Dropped duplicate requests: " + droppedDuplicates);
+    }
+    synchronized (pending) {
+      writer.println("Pending requests: " + pending);
+    }
+  }
+
+  @NonNull
+  private static String getWorkKey(@NonNull Intent intent) {
+    if (ACTION_CLEANUP_EPISODES.equals(intent.getAction())) {
+      return intent.getAction() + ':'
+          + intent.getIntExtra(EXTRA_EPISODE_STATE, Provider.ESTATE_GONE);
+    } else {
+      return String.valueOf(intent.getAction());
+    }
+  }
+
+  /**
+   * @return true if there is another intent with the same work key queued after this one
+   */
+  private boolean isSuperseded(@NonNull Intent intent) {
+    String key = getWorkKey(intent);
+    synchronized (pending) {
+      Integer count = pending.get(key);
+      if (count == null || count <= 1) {
+        pending.remove(key);
+        return false;
+      }
+      pending.put(key, count - 1);
+    }
+    int dropped;
+    synchronized (droppedDuplicates) {
+      Integer previous = droppedDuplicates.get(key);
+      dropped = previous == null ? 1 : previous + 1;
+      droppedDuplicates.put(key, dropped);
+    }
+    Log.i(TAG, "Skipping " + key + ", it's queued again. Dropped so far: " + dropped);
+    return true;
+  }
+
   public static void startHandleDownloads(Context context) {
     Intent intent = new Intent(context, BackgroundOperations.class);
     intent.setAction(ACTION_HANDLE_DOWNLOADS);
     context.startService(intent);
   }
 
+  /** evicts downloaded media exceeding storage budget, see StorageQuota */
+  public static void startEnforceQuota(@NonNull Context context) {
+    Intent intent = new Intent(context, BackgroundOperations.class);
+    intent.setAction(ACTION_ENFORCE_QUOTA);
+    context.startService(intent);
+  }
+
   /** deletes episodes whose state == stateFilter */
   public static void startCleanupEpisodes(@NonNull Context context, int stateFilter) {
     Intent intent = new Intent(context, BackgroundOperations.class);
@@ -52,6 +156,9 @@ public class BackgroundOperations extends IntentService {
   @Override
   protected void onHandleIntent(Intent intent) {
     if (intent != null) {
+      if (isSuperseded(intent)) {
+        return;
+      }
       final String action = intent.getAction();
       Log.i(TAG, "Processing " + action);
       switch (action) {
@@ -61,6 +168,9 @@ public class BackgroundOperations extends IntentService {
         case ACTION_HANDLE_DOWNLOADS:
           handleDownloads();
           break;
+        case ACTION_ENFORCE_QUOTA:
+          enforceQuota();
+          break;
         default:
           Log.wtf(TAG, "Unexpected intent action: " + action);
       }
@@ -88,60 +198,162 @@ public class BackgroundOperations extends IntentService {
       Log.wtf(TAG, "Provider query returned null");
       return;
     }
-    Log.i(TAG, "Cleaning up " + cursor.getCount() + " episodes");
-    DownloadManager dm = (DownloadManager) getSystemService(Context.DOWNLOAD_SERVICE);
-    boolean downloadsStopped = false;
+    final long startTime = SystemClock.elapsedRealtime();
+    int count = cursor.getCount();
+    Log.i(TAG, "Cleaning up " + count + " episodes");
+    if (count == 0) {
+      cursor.close();
+      return;
+    }
+    final long[] ids = new long[count];
+    List<Long> dmIds = new ArrayList<>();
+    List<Long> builtInIds = new ArrayList<>();
+    List<Long> downloadingIds = new ArrayList<>();
+    List<Long> deleteIds = new ArrayList<>();
+    List<Long> goneIds = new ArrayList<>();
+    int idInd = cursor.getColumnIndexOrThrow(Provider.K_ID);
+    int dlIdInd = cursor.getColumnIndexOrThrow(Provider.K_EDID);
+    int tstampInd = cursor.getColumnIndexOrThrow(Provider.K_ETSTAMP);
+    int feedTstampInd = cursor.getColumnIndexOrThrow(Provider.K_PTSTAMP);
     while (cursor.moveToNext()) {
-      long episodeId = cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_ID));
-      // 1. Stop download if any
-      long dlId = cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_EDID));
+      long episodeId = cursor.getLong(idInd);
+      ids[cursor.getPosition()] = episodeId;
+      long dlId = cursor.getLong(dlIdInd);
       if (dlId != 0) {
-        dm.remove(dlId);
+        downloadingIds.add(episodeId);
+        if (HttpDownloadService.isBuiltInDownload(dlId)) {
+          builtInIds.add(episodeId);
+        } else {
+          dmIds.add(dlId);
+        }
+      }
+      // completely remove episode from db if it is already absent in the feed or feed itself is
+      // deleted (K_PTSTAMP column will contain null in latter case)
+      if (cursor.isNull(feedTstampInd)
+          || cursor.getLong(tstampInd) < cursor.getLong(feedTstampInd)) {
+        deleteIds.add(episodeId);
+      } else {
+        goneIds.add(episodeId);
+      }
+    }
+    cursor.close();
+
+    // 1. Stop downloads if any
+    if (!dmIds.isEmpty()) {
+      DownloadManager dm = (DownloadManager) getSystemService(Context.DOWNLOAD_SERVICE);
+      int removed = dm.remove(DownloadReceiver.toArray(dmIds));
+      if (removed != dmIds.size()) {
+        Log.w(TAG, "Failed to remove " + (dmIds.size() - removed) + " downloads");
+      }
+    }
+    if (!builtInIds.isEmpty()) {
+      HttpDownloadService.cancelDownloads(this, DownloadReceiver.toArray(builtInIds));
+    }
+
+    // 2. Delete audio and images related to these episodes if any
+    final Storage storage = Preferences.getInstance().getStorage();
+    if (storage == null || !storage.isAvailableRw()) {
+      // keep episodes in db, so that their media is deleted once storage is available again
+      Log.w(TAG, "failed to delete episode media: no storage or it isn't writable");
+      if (!downloadingIds.isEmpty()) {
         ContentValues val = new ContentValues(1);
         val.put(Provider.K_EDID, 0);
-        if (resolver.update(Provider.getUri(Provider.T_EPISODE, episodeId), val, null, null) != 1) {
-          Log.w(TAG, "Failed to reset DID for episode " + episodeId);
+        resolver.update(Provider.episodeUri, val, getIdSelection(downloadingIds), null);
+        sendBroadcast(DownloadReceiver.getUpdateQueueIntent(this));
+      }
+      return;
+    }
+    List<Future<?>> futures = new ArrayList<>(PROCESSING_THREADS);
+    int chunk = (ids.length + PROCESSING_THREADS - 1) / PROCESSING_THREADS;
+    for (int start = 0; start < ids.length; start += chunk) {
+      final int from = start;
+      final int to = Math.min(ids.length, start + chunk);
+      futures.add(processingExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          deleteMedia(storage.getPodcastDir(), ids, from, to);
         }
-        downloadsStopped = true;
+      }));
+    }
+    ImageManager.getInstance().deleteImages(ids);
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException | ExecutionException exception) {
+        Log.wtf(TAG, "Media deletion failed unexpectedly", exception);
       }
-      // 2. Delete audio and images related to this episode if any
-      Storage storage = Preferences.getInstance().getStorage();
-      if (storage == null || !storage.isAvailableRw()) {
-        Log.w(TAG, "failed to delete episode media: no storage or it isn't writable");
-        continue;
+    }
+
+    // 3. Set gone state or delete episodes from db in one transaction
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>(2);
+    if (!deleteIds.isEmpty()) {
+      Log.i(TAG, "Feeds don't contain " + deleteIds.size() + " episodes anymore. Deleting from db");
+      operations.add(ContentProviderOperation
+                         .newDelete(Provider.episodeUri)
+                         .withSelection(getIdSelection(deleteIds), null)
+                         .build());
+    }
+    if (!goneIds.isEmpty()) {
+      ContentValues val = new ContentValues(3);
+      val.put(Provider.K_ESTATE, Provider.ESTATE_GONE);
+      val.put(Provider.K_EDFIN, 0);
+      val.put(Provider.K_EDID, 0);
+      operations.add(ContentProviderOperation
+                         .newUpdate(Provider.episodeUri)
+                         .withSelection(getIdSelection(goneIds), null)
+                         .withValues(val)
+                         .build());
+    }
+    try {
+      ContentProviderResult[] results = resolver.applyBatch(Provider.authorityBase, operations);
+      int processed = 0;
+      for (ContentProviderResult result : results) {
+        processed += result.count == null ? 0 : result.count;
+      }
+      if (processed != count) {
+        Log.w(TAG, "Failed to clean up " + (count - processed) + " episodes in db");
       }
-      File file = new File(storage.getPodcastDir(), Long.toString(episodeId));
+    } catch (RemoteException | OperationApplicationException exception) {
+      Log.e(TAG, "Failed to clean up " + count + " episodes in db", exception);
+    }
+    Log.i(TAG, "Cleaned up " + count + " episodes in " + (SystemClock.elapsedRealtime() - startTime)
+        + "ms");
+    if (!downloadingIds.isEmpty()) {
+      sendBroadcast(DownloadReceiver.getUpdateQueueIntent(this));
+    }
+  }
+
+  private static void deleteMedia(@NonNull File podcastDir, @NonNull long[] ids, int from, int to) {
+    for (int i = from; i < to; i++) {
+      File file = new File(podcastDir, Long.toString(ids[i]));
       if (file.exists() && !file.delete()) {
         Log.w(TAG, "Failed to delete " + file.toURI());
       }
-      ImageManager.getInstance().deleteImage(episodeId);
-      // 3. Set gone state or completely remove episode from db if it is already absent in the feed
-      // or feed itself is deleted (K_PTSTAMP column will contain null in latter case)
-      if (cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_ETSTAMP))
-          < cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_PTSTAMP))
-          || cursor.isNull(cursor.getColumnIndexOrThrow(Provider.K_PTSTAMP))) {
-        Log.i(TAG, "Feed doesn't contain episode " + episodeId + " anymore. Deleting from db..");
-        if (resolver.delete(Provider.getUri(Provider.T_EPISODE, episodeId), null, null) != 1) {
-          Log.w(TAG, "Failed to delete " + episodeId + " from db");
-        }
-      } else {
-        ContentValues val = new ContentValues(3);
-        val.put(Provider.K_ESTATE, Provider.ESTATE_GONE);
-        val.put(Provider.K_EDFIN, 0);
-        val.put(Provider.K_EDID, 0);
-        if (resolver.update(Provider.getUri(Provider.T_EPISODE, episodeId), val, null, null) != 1) {
-          Log.w(TAG, "Failed to set GONE state for episode " + episodeId);
-        }
+      File stateFile = HttpDownload.getStateFile(podcastDir, ids[i]);
+      if (stateFile.exists() && !stateFile.delete()) {
+        Log.w(TAG, "Failed to delete " + stateFile.toURI());
+      }
+      File seekTableFile = Mp3SeekTable.getFile(podcastDir, ids[i]);
+      if (seekTableFile.exists() && !seekTableFile.delete()) {
+        Log.w(TAG, "Failed to delete " + seekTableFile.toURI());
       }
     }
-    cursor.close();
-    if (downloadsStopped) {
-      sendBroadcast(DownloadReceiver.getUpdateQueueIntent(this));
+  }
+
+  @NonNull
+  private static String getIdSelection(@NonNull List<Long> ids) {
+    StringBuilder builder = new StringBuilder(Provider.K_ID).append(" IN (");
+    for (int i = 0; i < ids.size(); i++) {
+      if (i != 0) {
+        builder.append(", ");
+      }
+      builder.append(ids.get(i));
     }
+    return builder.append(')').toString();
   }
 
   private void handleDownloads() {
-    Storage currentStorage = Preferences.getInstance().getStorage();
+    final Storage currentStorage = Preferences.getInstance().getStorage();
     if (currentStorage == null) {
       Log.w(TAG, "No reason to handle downloads now, no storage available)");
       return;
@@ -158,48 +370,123 @@ public class BackgroundOperations extends IntentService {
       return;
     }
 
+    // episodes are processed concurrently, db is updated once all of them are done
+    final long startTime = SystemClock.elapsedRealtime();
+    List<Long> ids = new ArrayList<>(cursor.getCount());
+    List<Future<ContentValues>> futures = new ArrayList<>(cursor.getCount());
     while (cursor.moveToNext()) {
-      long epId = cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_ID));
-      int downloadFinished = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_EDFIN));
-      int attempts = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_EDATT));
-      File downloadLocation = new File(currentStorage.getPodcastDir(), Long.toString(epId));
-      ContentValues cv = new ContentValues();
-      cv.put(Provider.K_EDATT, attempts + 1);
-      cv.put(Provider.K_EDTSTAMP, new Date().getTime());
-      if (downloadFinished == Provider.EDFIN_MOVING) {
-        File tempFile = findTempFile(epId, currentStorage);
-        if (tempFile == null) {
-          Log.e(TAG, "Failed to find temp file");
-          setDownloadErrorCode(epId, Provider.EDFIN_ERROR, cv);
+      final long epId = cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_ID));
+      final int downloadFinished = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_EDFIN));
+      final int attempts = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_EDATT));
+      ids.add(epId);
+      futures.add(processingExecutor.submit(new Callable<ContentValues>() {
+        @Override
+        public ContentValues call() {
+          return handleDownload(epId, downloadFinished, attempts, currentStorage);
         }
-        try {
-          Log.i(TAG, "Moving file from " + tempFile + " to " + downloadLocation);
-          moveFile(tempFile, downloadLocation);
-        } catch (IOException exception) {
-          Log.e(TAG, "Failed to move file from temporary storage", exception);
-          setDownloadErrorCode(epId, Provider.EDFIN_ERROR, cv);
-          continue;
-        }
-      }
-      if (!isDownloadedFileOk(downloadLocation)) {
-        Log.e(TAG, "Bad data received for episode " + epId);
-        setDownloadErrorCode(epId, Provider.EDFIN_ERROR, cv);
+      }));
+    }
+    cursor.close();
+    if (futures.isEmpty()) {
+      return;
+    }
+
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>(futures.size());
+    List<Boolean> completions = new ArrayList<>(futures.size());
+    for (int i = 0; i < futures.size(); i++) {
+      ContentValues cv;
+      try {
+        cv = futures.get(i).get();
+      } catch (InterruptedException | ExecutionException exception) {
+        Log.wtf(TAG, "Download processing failed unexpectedly", exception);
         continue;
       }
-      cv.put(Provider.K_EDFIN, Provider.EDFIN_COMPLETE);
-      cv.put(Provider.K_ESIZE, downloadLocation.length());
-      long duration = getFileLength(downloadLocation);
-      if (duration != 0) {
-        cv.put(Provider.K_ELENGTH, duration);
+      operations.add(ContentProviderOperation
+                         .newUpdate(Provider.getUri(Provider.T_EPISODE, ids.get(i)))
+                         .withValues(cv)
+                         .build());
+      completions.add(cv.getAsInteger(Provider.K_EDFIN) == Provider.EDFIN_COMPLETE);
+    }
+    ContentProviderResult[] results;
+    try {
+      results = getContentResolver().applyBatch(Provider.authorityBase, operations);
+    } catch (RemoteException | OperationApplicationException exception) {
+      Log.e(TAG, "Failed to update db rows of " + operations.size() + " episodes", exception);
+      return;
+    }
+    int completed = 0;
+    for (int i = 0; i < results.length; i++) {
+      if (results[i].count == null || results[i].count != 1) {
+        Log.e(TAG, "Failed to update db row " + operations.get(i).getUri());
+      } else if (completions.get(i)) {
+        completed++;
       }
-      if (getContentResolver()
-          .update(Provider.getUri(Provider.T_EPISODE, epId), cv, null, null) != 1) {
-        Log.e(TAG, "Failed to update db row for episode " + epId);
-      } else {
-        Log.i(TAG, "Successfully downloaded " + epId);
+    }
+    Log.i(TAG, "Processed " + operations.size() + " downloads (" + completed + " successful) in "
+        + (SystemClock.elapsedRealtime() - startTime) + "ms");
+    if (completed > 0) {
+      enforceQuota();
+    }
+  }
+
+  /**
+   * Moves, validates and probes downloaded file. Runs on processingExecutor
+   *
+   * @return values to update episode row with
+   */
+  @NonNull
+  private ContentValues handleDownload(long epId, int downloadFinished, int attempts,
+                                       @NonNull Storage currentStorage) {
+    File downloadLocation = new File(currentStorage.getPodcastDir(), Long.toString(epId));
+    ContentValues cv = new ContentValues();
+    cv.put(Provider.K_EDATT, attempts + 1);
+    cv.put(Provider.K_EDTSTAMP, new Date().getTime());
+    if (downloadFinished == Provider.EDFIN_MOVING) {
+      File tempFile = findTempFile(epId, currentStorage);
+      if (tempFile == null) {
+        Log.e(TAG, "Failed to find temp file");
+        setDownloadErrorCode(Provider.EDFIN_ERROR, cv);
+        return cv;
+      }
+      try {
+        Log.i(TAG, "Moving file from " + tempFile + " to " + downloadLocation);
+        moveFile(tempFile, downloadLocation);
+      } catch (IOException exception) {
+        Log.e(TAG, "Failed to move file from temporary storage", exception);
+        setDownloadErrorCode(Provider.EDFIN_ERROR, cv);
+        return cv;
       }
     }
-    cursor.close();
+    if (!isDownloadedFileOk(downloadLocation)) {
+      Log.e(TAG, "Bad data received for episode " + epId);
+      setDownloadErrorCode(Provider.EDFIN_ERROR, cv);
+      return cv;
+    }
+    cv.put(Provider.K_EDFIN, Provider.EDFIN_COMPLETE);
+    cv.put(Provider.K_ESIZE, downloadLocation.length());
+    // for VBR MP3 frame by frame count is more precise than duration stored in headers
+    Mp3SeekTable seekTable = Mp3SeekTable.build(
+        downloadLocation, Mp3SeekTable.getFile(currentStorage.getPodcastDir(), epId));
+    long duration = seekTable == null ? getFileLength(downloadLocation) : seekTable.getDuration();
+    if (duration != 0) {
+      cv.put(Provider.K_ELENGTH, duration);
+    }
+    Log.i(TAG, "Successfully downloaded " + epId);
+    return cv;
+  }
+
+  /**
+   * Evicts one batch of episodes. If budget still isn't met, next batch is queued as a separate
+   * intent, so that other operations aren't blocked by eviction of a large amount of media
+   */
+  private void enforceQuota() {
+    int evicted = StorageQuota.evict(this);
+    if (evicted == StorageQuota.EVICTION_BATCH) {
+      startEnforceQuota(this);
+    } else if (evicted > 0) {
+      // space is freed, resume downloads which were held back by budget
+      sendBroadcast(DownloadReceiver.getUpdateQueueIntent(this));
+    }
   }
 
 
@@ -223,7 +510,11 @@ public class BackgroundOperations extends IntentService {
   }
 
   private long getFileLength(File file) {
-    long duration = 0;
+    long duration = DurationParser.getDuration(file);
+    if (duration > 0) {
+      return duration;
+    }
+    Log.i(TAG, "Failed to parse duration of " + file + ", falling back to MediaMetadataRetriever");
     MediaMetadataRetriever mmr = new MediaMetadataRetriever();
     // setDataSource may throw RuntimeException for damaged media file
     try {
@@ -244,57 +535,36 @@ public class BackgroundOperations extends IntentService {
     return duration;
   }
 
-  private void setDownloadErrorCode(long episodeId, int dlFinValue, @NonNull ContentValues cv) {
+  private static void setDownloadErrorCode(int dlFinValue, @NonNull ContentValues cv) {
     Log.e(TAG, "Download failed. Error code: " + dlFinValue);
     cv.put(Provider.K_EDFIN, Provider.EDFIN_ERROR);
     cv.put(Provider.K_EERROR, "Download failed. Error code: " + dlFinValue);
-    getContentResolver().update(Provider.getUri(Provider.T_EPISODE, episodeId), cv, null, null);
   }
 
   /**
    * Sometimes body of redirect response is downloaded instead of media file (seen this on xperia
    * Z2 with moscow metro wifi). Such body could be empty or could contain some html code.
-   * If downloaded file size is less then 1kB, consider it is an error. If file size is between
-   * 1kB and 5MB, check if it starts with < and ends with > (which means it's html/xml).
+   * If downloaded file size is less then 1kB, consider it is an error. Otherwise sniff file head
+   * and reject it if it's html/xml or whitespaces. Files of unknown format are accepted, as player
+   * may still be able to play them.
    */
   private boolean isDownloadedFileOk(@NonNull File file) {
+    if (file.length() < 1024) {
+      Log.e(TAG, file + " is too small to be an audio file");
+      return false;
+    }
     try {
-      long length = file.length();
-      if (length < 1024) {
-        Log.e(TAG, file + " is too small to be an audio file");
-        return false; // it's to small to be audio file
-      } else if (length < 5 * 1024 * 1024) {
-        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-
-        for (long offset = 0; offset < length; offset++) {
-          randomAccessFile.seek(offset);
-          char firstChar = (char) randomAccessFile.readByte();
-          if (!Character.isWhitespace(firstChar)) {
-            if (firstChar == '<') {
-              break; // file begins with \s*<, now check if it ends with >\s*
-            } else {
-              return true;
-            }
-          }
-        }
-
-        for (long offset = length - 1; offset >= 0; offset--) {
-          randomAccessFile.seek(offset);
-          char lastChar = (char) randomAccessFile.readByte();
-          if (!Character.isWhitespace(lastChar)) {
-            if (lastChar == '>') {
-              Log.e(TAG, file + ": XML/HTML downloaded instead of audio");
-              return false;
-            } else {
-              return true;
-            }
-          }
-        }
-
-        Log.e(TAG, file + " consists of whitespaces only");
-        return false;
-      } else {
-        return true; // file is big enough, it's probably media, not html
+      AudioSniffer.Container container = AudioSniffer.sniff(file);
+      switch (container) {
+        case MARKUP:
+          Log.e(TAG, file + ": XML/HTML or whitespaces downloaded instead of audio");
+          return false;
+        case UNKNOWN:
+          Log.w(TAG, file + ": unknown audio container");
+          return true;
+        default:
+          Log.d(TAG, file + ": " + container + " container detected");
+          return true;
       }
     } catch (IOException exception) {
       Log.e(TAG, "Error while checking downloaded file", exception);
@@ -302,23 +572,71 @@ public class BackgroundOperations extends IntentService {
     }
   }
 
+  /**
+   * Renames source to destination if they are on the same filesystem. Otherwise copies source
+   * chunk by chunk, syncs and verifies the copy and only then deletes source.
+   */
   public static void moveFile(File source, File destination) throws IOException {
-    FileChannel outChannel = null;
-    FileChannel inChannel = null;
-    try {
-      inChannel = new FileInputStream(source).getChannel();
-      outChannel = new FileOutputStream(destination).getChannel();
-      inChannel.transferTo(0, inChannel.size(), outChannel);
-    } finally {
-      if (inChannel != null) {
-        inChannel.close();
+    long startTime = SystemClock.elapsedRealtime();
+    long size = source.length();
+    boolean renamed = source.renameTo(destination);
+    if (!renamed) {
+      try {
+        copyFile(source, destination);
+      } catch (IOException exception) {
+        if (destination.exists() && !destination.delete()) {
+          Log.e(TAG, "Failed to delete partial copy " + destination);
+        }
+        throw exception;
+      } finally {
+        // download is restarted from scratch on error, so source isn't needed anyway
+        if (!source.delete()) {
+          Log.e(TAG, "Failed to delete source " + source);
+        }
       }
-      if (!source.delete()) {
-        Log.e(TAG, "Failed to delete source " + source);
+    }
+    long time = SystemClock.elapsedRealtime() - startTime;
+    Log.i(TAG, (renamed ? "Renamed " : "Copied ") + size + " bytes to " + destination + " in "
+        + time + "ms" + (time > 0 ? " (" + size / time + " kB/s)" : ""));
+  }
+
+  private static void copyFile(File source, File destination) throws IOException {
+    FileInputStream inStream = new FileInputStream(source);
+    FileOutputStream outStream = null;
+    long size;
+    try {
+      outStream = new FileOutputStream(destination);
+      FileChannel inChannel = inStream.getChannel();
+      FileChannel outChannel = outStream.getChannel();
+      size = inChannel.size();
+      // transferTo may transfer less then requested, so loop until everything is copied
+      long position = 0;
+      while (position < size) {
+        long transferred = inChannel.transferTo(
+            position, Math.min(COPY_CHUNK_SIZE, size - position), outChannel);
+        if (transferred <= 0) {
+          throw new IOException("Copying stalled at " + position + " of " + size + " bytes");
+        }
+        position += transferred;
       }
-      if (outChannel != null) {
-        outChannel.close();
+      outStream.getFD().sync();
+    } finally {
+      closeStream(inStream);
+      if (outStream != null) {
+        closeStream(outStream);
       }
     }
+    if (destination.length() != size) {
+      throw new IOException(
+          "Size of " + destination + " is " + destination.length() + " instead of " + size);
+    }
+  }
+
+  private static void closeStream(Closeable stream) {
+    try {
+      stream.close();
+    } catch (IOException exception) {
+      Log.wtf(TAG, "Failed to close stream", exception);
+    }
   }
 }
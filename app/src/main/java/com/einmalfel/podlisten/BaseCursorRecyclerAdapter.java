@@ -3,6 +3,7 @@ package com.einmalfel.podlisten;
 import android.database.Cursor;
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
 
 import com.einmalfel.podlisten.thirdparty.CursorRecyclerAdapter;
@@ -13,11 +14,55 @@ import java.util.Set;
 public abstract class BaseCursorRecyclerAdapter<T extends RecyclerView.ViewHolder>
     extends CursorRecyclerAdapter<T> {
   protected final Set<Long> expandedElements = new HashSet<>(10);
+  // snapshot of current cursor, null if it wasn't loaded by DiffCursorLoader
+  @Nullable
+  private DiffCursorLoader.Snapshot snapshot;
 
   public BaseCursorRecyclerAdapter(Cursor cursor) {
     super(cursor);
   }
 
+  @Override
+  public Cursor swapCursor(Cursor newCursor) {
+    if (newCursor == null) {
+      snapshot = null;
+    }
+    return super.swapCursor(newCursor);
+  }
+
+  @Override
+  protected void onCursorSwapped(Cursor oldCursor, Cursor newCursor) {
+    DiffCursorLoader.Snapshot oldSnapshot = snapshot;
+    snapshot = null;
+    if (newCursor instanceof DiffCursorLoader.DiffCursor) {
+      DiffCursorLoader.DiffCursor diffCursor = (DiffCursorLoader.DiffCursor) newCursor;
+      snapshot = diffCursor.snapshot;
+      // diff is only valid if it was computed against the data currently shown
+      if (diffCursor.diff != null && oldSnapshot != null && diffCursor.base == oldSnapshot) {
+        diffCursor.diff.dispatchUpdatesTo(this);
+        return;
+      }
+    }
+    notifyDataSetChanged();
+  }
+
+  /**
+   * Notifies that item with given id has changed, does nothing if there is no such item.
+   * Falls back to notifyDataSetChanged if current cursor wasn't loaded by DiffCursorLoader.
+   */
+  void notifyIdChanged(long id) {
+    if (snapshot == null) {
+      if (getCursor() != null) {
+        notifyDataSetChanged();
+      }
+      return;
+    }
+    int position = snapshot.indexOf(id);
+    if (position >= 0) {
+      notifyItemChanged(position);
+    }
+  }
+
   void setExpanded(long id, boolean expanded, final int position) {
     if (!expandedElements.contains(id) && expanded) {
       expandedElements.add(id);
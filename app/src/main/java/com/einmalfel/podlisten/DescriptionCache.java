@@ -0,0 +1,120 @@
+package com.einmalfel.podlisten;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.Html;
+import android.text.Spanned;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Memory cache of episode descriptions parsed from html, so that expanded episode cards don't
+ * run Html.fromHtml on UI thread. Entries are keyed by episode id and validated by hash of html
+ * they were built from, so a description updated by refresh is re-parsed. Cache size is accounted
+ * in estimated bytes held by parsed text and its spans.
+ */
+class DescriptionCache {
+  interface Listener {
+    /**
+     * Called on UI thread once description of episode id is in cache
+     */
+    void onDescriptionLoaded(long id);
+  }
+
+  private static final String TAG = "DCA";
+  private static final int MAX_SIZE_BYTES = 2 * 1024 * 1024;
+  private static final int SPAN_SIZE_BYTES = 64; // rough size of span object and its bookkeeping
+  private static final int ENTRY_SIZE_BYTES = 64;
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+          return new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              runnable.run();
+            }
+          }, "DescriptionCache");
+        }
+      });
+  private static DescriptionCache instance;
+
+  private static class Entry {
+    final int version;
+    final Spanned text;
+    final int size;
+
+    Entry(int version, @NonNull Spanned text) {
+      this.version = version;
+      this.text = text;
+      size = ENTRY_SIZE_BYTES + text.length() * 2
+          + text.getSpans(0, text.length(), Object.class).length * SPAN_SIZE_BYTES;
+    }
+  }
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final LruCache<Long, Entry> cache = new LruCache<Long, Entry>(MAX_SIZE_BYTES) {
+    @Override
+    protected int sizeOf(Long key, Entry value) {
+      return value.size;
+    }
+  };
+
+  private DescriptionCache() {}
+
+  @NonNull
+  static synchronized DescriptionCache getInstance() {
+    if (instance == null) {
+      instance = new DescriptionCache();
+    }
+    return instance;
+  }
+
+  /**
+   * @return parsed description or null if it isn't cached yet
+   */
+  @Nullable
+  Spanned get(long id, @NonNull String html) {
+    Entry entry = cache.get(id);
+    return entry == null || entry.version != html.hashCode() ? null : entry.text;
+  }
+
+  /**
+   * Parses description on background thread unless it's already cached
+   *
+   * @param listener notified once description is cached, may be null
+   */
+  void load(final long id, @NonNull final String html, @Nullable final Listener listener) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (get(id, html) == null) {
+          Entry entry = new Entry(html.hashCode(), Html.fromHtml(html));
+          cache.put(id, entry);
+          Log.d(TAG, "Cached description of " + id + ", " + entry.size + " bytes, total "
+              + cache.size() + " bytes");
+        }
+        if (listener != null) {
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              listener.onDescriptionLoaded(id);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  void clear() {
+    cache.evictAll();
+  }
+}
@@ -0,0 +1,209 @@
+package com.einmalfel.podlisten;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.CursorLoader;
+import android.support.v7.util.DiffUtil;
+
+import java.util.Arrays;
+
+/**
+ * CursorLoader which also computes difference between previously delivered cursor and the new one
+ * on loader thread. Rows are matched by _ID and compared by signature, a hash of the row values
+ * (of all of them or of given signature columns). BaseCursorRecyclerAdapter dispatches the
+ * difference as granular notifyItem* calls, so that a requery only re-binds rows which actually
+ * changed.
+ */
+class DiffCursorLoader extends CursorLoader {
+  /**
+   * Episode columns which change while episode is listed. Descriptions and other texts aren't
+   * hashed: they are costly to hash and don't change once episode is added
+   */
+  static final String[] EPISODE_SIGNATURE_COLUMNS = new String[]{
+      Provider.K_ESTATE, Provider.K_EPLAYED, Provider.K_ELENGTH, Provider.K_EDFIN,
+      Provider.K_ESIZE, Provider.K_EDID, Provider.K_EERROR, Provider.K_EDATE};
+
+  /**
+   * Ids and signatures of cursor rows, immutable
+   */
+  static class Snapshot {
+    private final long[] ids;
+    private final long[] signatures;
+
+    /**
+     * @param signatureColumns columns to hash, all if null. Columns absent in cursor are skipped
+     */
+    private Snapshot(@NonNull Cursor cursor, @Nullable String[] signatureColumns) {
+      int count = cursor.getCount();
+      ids = new long[count];
+      signatures = new long[count];
+      int idColumn = cursor.getColumnIndexOrThrow(Provider.K_ID);
+      int[] columns = getColumnIndices(cursor, signatureColumns);
+      for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+        ids[i] = cursor.getLong(idColumn);
+        long signature = 17;
+        for (int column : columns) {
+          signature = 31 * signature + getHash(cursor, column);
+        }
+        signatures[i] = signature;
+      }
+      cursor.moveToPosition(-1);
+    }
+
+    @NonNull
+    private static int[] getColumnIndices(@NonNull Cursor cursor, @Nullable String[] names) {
+      if (names == null) {
+        int[] result = new int[cursor.getColumnCount()];
+        for (int column = 0; column < result.length; column++) {
+          result[column] = column;
+        }
+        return result;
+      }
+      int[] result = new int[names.length];
+      int found = 0;
+      for (String name : names) {
+        int column = cursor.getColumnIndex(name);
+        if (column != -1) {
+          result[found++] = column;
+        }
+      }
+      return Arrays.copyOf(result, found);
+    }
+
+    int indexOf(long id) {
+      for (int i = 0; i < ids.length; i++) {
+        if (ids[i] == id) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static long getHash(@NonNull Cursor cursor, int column) {
+      switch (cursor.getType(column)) {
+        case Cursor.FIELD_TYPE_INTEGER:
+          return cursor.getLong(column);
+        case Cursor.FIELD_TYPE_FLOAT:
+          return Double.doubleToLongBits(cursor.getDouble(column));
+        case Cursor.FIELD_TYPE_STRING:
+          return cursor.getString(column).hashCode();
+        case Cursor.FIELD_TYPE_BLOB:
+          return Arrays.hashCode(cursor.getBlob(column));
+        default:
+          return 0;
+      }
+    }
+  }
+
+  /**
+   * Loaded cursor along with its snapshot and the difference from the base snapshot
+   */
+  static class DiffCursor extends CursorWrapper {
+    @NonNull
+    final Snapshot snapshot;
+    @Nullable
+    final Snapshot base; // snapshot diff is computed against, null if there was no such
+    @Nullable
+    final DiffUtil.DiffResult diff;
+
+    private DiffCursor(@NonNull Cursor cursor, @NonNull Snapshot snapshot, @Nullable Snapshot base,
+                       @Nullable DiffUtil.DiffResult diff) {
+      super(cursor);
+      this.snapshot = snapshot;
+      this.base = base;
+      this.diff = diff;
+    }
+  }
+
+  private static class Callback extends DiffUtil.Callback {
+    private final Snapshot oldSnapshot;
+    private final Snapshot newSnapshot;
+
+    Callback(@NonNull Snapshot oldSnapshot, @NonNull Snapshot newSnapshot) {
+      this.oldSnapshot = oldSnapshot;
+      this.newSnapshot = newSnapshot;
+    }
+
+    @Override
+    public int getOldListSize() {
+      return oldSnapshot.ids.length;
+    }
+
+    @Override
+    public int getNewListSize() {
+      return newSnapshot.ids.length;
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+      return oldSnapshot.ids[oldItemPosition] == newSnapshot.ids[newItemPosition];
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+      return oldSnapshot.signatures[oldItemPosition] == newSnapshot.signatures[newItemPosition];
+    }
+  }
+
+  @Nullable
+  private final String[] signatureColumns;
+  // snapshot of the last cursor delivered to UI. Written on UI thread, read on loader thread
+  private volatile Snapshot delivered;
+
+  DiffCursorLoader(@NonNull Context context, @NonNull Uri uri, @Nullable String[] projection,
+                   @Nullable String selection, @Nullable String[] selectionArgs,
+                   @Nullable String sortOrder) {
+    this(context, uri, projection, selection, selectionArgs, sortOrder, null);
+  }
+
+  /**
+   * @param signatureColumns columns rows are compared by, all columns if null
+   */
+  DiffCursorLoader(@NonNull Context context, @NonNull Uri uri, @Nullable String[] projection,
+                   @Nullable String selection, @Nullable String[] selectionArgs,
+                   @Nullable String sortOrder, @Nullable String[] signatureColumns) {
+    super(context, uri, projection, selection, selectionArgs, sortOrder);
+    this.signatureColumns = signatureColumns;
+  }
+
+  /**
+   * Called on loader thread to query the cursor, which is then snapshotted and diffed
+   */
+  @Nullable
+  protected Cursor loadCursor() {
+    return super.loadInBackground();
+  }
+
+  @Override
+  public Cursor loadInBackground() {
+    Cursor cursor = loadCursor();
+    if (cursor == null) {
+      return null;
+    }
+    Snapshot snapshot = new Snapshot(cursor, signatureColumns);
+    Snapshot base = delivered;
+    DiffUtil.DiffResult diff = null;
+    if (base != null) {
+      diff = DiffUtil.calculateDiff(new Callback(base, snapshot), true);
+    }
+    return new DiffCursor(cursor, snapshot, base, diff);
+  }
+
+  @Override
+  public void deliverResult(Cursor cursor) {
+    if (cursor instanceof DiffCursor && !isReset()) {
+      delivered = ((DiffCursor) cursor).snapshot;
+    }
+    super.deliverResult(cursor);
+  }
+
+  @Override
+  protected void onReset() {
+    super.onReset();
+    delivered = null;
+  }
+}
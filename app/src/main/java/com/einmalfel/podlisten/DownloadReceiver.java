@@ -3,6 +3,7 @@ package com.einmalfel.podlisten;
 import static android.app.DownloadManager.ACTION_DOWNLOAD_COMPLETE;
 import static android.app.DownloadManager.ACTION_NOTIFICATION_CLICKED;
 import static android.app.DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR;
+import static android.app.DownloadManager.COLUMN_ID;
 import static android.app.DownloadManager.COLUMN_LAST_MODIFIED_TIMESTAMP;
 import static android.app.DownloadManager.COLUMN_LOCAL_FILENAME;
 import static android.app.DownloadManager.COLUMN_REASON;
@@ -18,23 +19,35 @@ import static android.content.Context.DOWNLOAD_SERVICE;
 
 import android.app.DownloadManager;
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Build;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.net.ConnectivityManagerCompat;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DownloadReceiver extends BroadcastReceiver {
   private static final String TAG = "DLR";
@@ -44,13 +57,17 @@ public class DownloadReceiver extends BroadcastReceiver {
   static final String URL_EXTRA_NAME = "URL";
   static final String TITLE_EXTRA_NAME = "TITLE";
   static final String ID_EXTRA_NAME = "ID";
+  private static final String FORCE_EXTRA_NAME = "FORCE";
   private static Boolean charging = null;
+  private static final ExecutorService progressExecutor = Executors.newSingleThreadExecutor();
+  private static final AtomicBoolean progressUpdateRunning = new AtomicBoolean();
 
   public DownloadReceiver() {
     super();
     if (charging == null) {
       charging = isDeviceCharging();
     }
+  }
 
   @NonNull
   public static Intent getHeartBeatIntent(@NonNull Context context) {
@@ -59,7 +76,17 @@ public class DownloadReceiver extends BroadcastReceiver {
 
   @NonNull
   public static Intent getUpdateQueueIntent(@NonNull Context context) {
-    return new Intent(UPDATE_QUEUE_ACTION, null, context, DownloadReceiver.class);
+    return getUpdateQueueIntent(context, true);
+  }
+
+  /**
+   * @param force if false, episodes which failed to download recently are skipped
+   */
+  @NonNull
+  public static Intent getUpdateQueueIntent(@NonNull Context context, boolean force) {
+    Intent result = new Intent(UPDATE_QUEUE_ACTION, null, context, DownloadReceiver.class);
+    result.putExtra(FORCE_EXTRA_NAME, force);
+    return result;
   }
 
   @NonNull
@@ -90,6 +117,9 @@ public class DownloadReceiver extends BroadcastReceiver {
    */
   private boolean download(@NonNull Context context, @NonNull String url, @NonNull String title,
                            long id, @NonNull Storage storage) {
+    if (Preferences.getInstance().getDownloadEngine() == Preferences.DownloadEngine.BUILT_IN) {
+      return downloadBuiltIn(context, url, id, storage);
+    }
     if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
       // trying to workaround #62: downloaded files disappear after some time on android 6+
       return download(context, url, title, id, storage.getCacheDir());
@@ -163,6 +193,40 @@ public class DownloadReceiver extends BroadcastReceiver {
     return true;
   }
 
+  /**
+   * Unlike DownloadManager, built-in engine writes straight to podcast dir and keeps partially
+   * downloaded files to resume them
+   */
+  static boolean downloadBuiltIn(@NonNull Context context, @NonNull String url, long id,
+                                 @NonNull Storage storage) {
+    if (!isNetworkAllowed(context)) {
+      Log.i(TAG, "Current network isn't allowed for downloads, skipping " + id);
+      return false;
+    }
+    HttpDownloadService.startDownload(context, id, url, storage.getPodcastDir());
+    return true;
+  }
+
+  /**
+   * DownloadManager applies network restrictions itself, built-in engine has to check them
+   */
+  private static boolean isNetworkAllowed(@NonNull Context context) {
+    ConnectivityManager manager =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo info = manager.getActiveNetworkInfo();
+    if (info == null || !info.isConnected()) {
+      return false;
+    }
+    switch (Preferences.getInstance().getDownloadNetwork()) {
+      case WIFI:
+        return !ConnectivityManagerCompat.isActiveNetworkMetered(manager);
+      case NON_ROAMING:
+        return !info.isRoaming();
+      default:
+        return true;
+    }
+  }
+
   private void processDownloadResult(Context context, long downloadId) {
     DownloadManager dlManager = (DownloadManager) context.getSystemService(DOWNLOAD_SERVICE);
     Cursor cursor = dlManager.query(new DownloadManager.Query().setFilterById(downloadId));
@@ -216,7 +280,7 @@ public class DownloadReceiver extends BroadcastReceiver {
       Log.wtf(TAG, "Download manager query failed", new NullPointerException());
       return Integer.MAX_VALUE; // to prevent starting of new downloads
     } else {
-      int runningCount = cursor.getCount();
+      int runningCount = cursor.getCount() + HttpDownloadService.getRunningCount();
       cursor.close();
       return runningCount;
     }
@@ -245,9 +309,6 @@ public class DownloadReceiver extends BroadcastReceiver {
     }
     int runningDownloadsCount = getRunningCount(context);
     int maxParallelDownloads = prefs.getMaxDownloads().toInt();
-    if (runningDownloadsCount >= maxParallelDownloads) {
-      return;
-    }
 
     String condition = Provider.K_EDID + " == 0 AND " + Provider.K_EDFIN + " NOT IN ("
         + Provider.EDFIN_COMPLETE + ", " + Provider.EDFIN_MOVING + ", " + Provider.EDFIN_PROCESSING
@@ -265,26 +326,32 @@ public class DownloadReceiver extends BroadcastReceiver {
       }
       condition += " AND " + Provider.K_EDTSTAMP + "<" + (new Date().getTime() - refreshIntervalMs);
     }
-    Cursor queue = context.getContentResolver().query(
-        Provider.episodeUri,
-        new String[]{Provider.K_EAURL, Provider.K_ENAME, Provider.K_ID},
-        condition,
-        null,
-        Provider.K_EDATT + " ASC, " + Provider.K_EDATE + " ASC");
-    if (queue == null) {
-      throw new AssertionError("Unexpectedly got null while querying provider");
-    }
-    int urlInd = queue.getColumnIndexOrThrow(Provider.K_EAURL);
-    int titleInd = queue.getColumnIndexOrThrow(Provider.K_ENAME);
-    int idInd = queue.getColumnIndexOrThrow(Provider.K_ID);
-    while (queue.moveToNext() && runningDownloadsCount < maxParallelDownloads) {
-      if (download(context, queue.getString(urlInd), queue.getString(titleInd),
-                   queue.getLong(idInd), targetStorage)) {
-        Log.d(TAG, "Updating queue : adding " + queue.getString(titleInd));
+    // when over budget, only download episodes which are about to be played. Others would be
+    // evicted right after download anyway. Same applies to episodes which were already evicted
+    boolean overBudget = StorageQuota.isOverBudget(context);
+    LongSparseArray<Integer> ranks = DownloadScheduler.getPlaylistRanks(context);
+    for (DownloadScheduler.Candidate candidate
+        : DownloadScheduler.getQueue(context, condition, ranks)) {
+      if ((overBudget || candidate.evicted) && candidate.rank >= StorageQuota.KEEP_NEXT) {
+        continue;
+      }
+      if (runningDownloadsCount >= maxParallelDownloads) {
+        if (candidate.rank >= DownloadScheduler.PREEMPTION_HORIZON) {
+          break;
+        }
+        long preempted = DownloadScheduler.findPreemptable(context, ranks, candidate.rank);
+        if (preempted == 0) {
+          break;
+        }
+        Log.i(TAG, "Preempting download of " + preempted + " by " + candidate.title);
+        stopDownloads(Provider.K_ID + " == " + preempted);
+        runningDownloadsCount--;
+      }
+      if (download(context, candidate.url, candidate.title, candidate.id, targetStorage)) {
+        Log.d(TAG, "Updating queue : adding " + candidate.title + ", rank " + candidate.rank);
         runningDownloadsCount++;
       }
     }
-    queue.close();
   }
 
   static void stopDownloads(@Nullable String selection) {
@@ -297,17 +364,27 @@ public class DownloadReceiver extends BroadcastReceiver {
         Provider.episodeUri, new String[]{Provider.K_EDID}, finalSelection, null, null);
     if (cursor != null) {
       if (cursor.getCount() != 0) {
-        long[] ids = new long[cursor.getCount()];
+        List<Long> dmIds = new ArrayList<>(cursor.getCount());
+        List<Long> builtInIds = new ArrayList<>();
         int columnId = cursor.getColumnIndexOrThrow(Provider.K_EDID);
-        int index = 0;
         while (cursor.moveToNext()) {
-          ids[index++] = cursor.getLong(columnId);
+          long downloadId = cursor.getLong(columnId);
+          if (HttpDownloadService.isBuiltInDownload(downloadId)) {
+            builtInIds.add(HttpDownloadService.getEpisodeId(downloadId));
+          } else {
+            dmIds.add(downloadId);
+          }
         }
 
-        DownloadManager dlManager = (DownloadManager) context.getSystemService(DOWNLOAD_SERVICE);
-        int removeResult = dlManager.remove(ids);
-        if (removeResult != ids.length) {
-          Log.e(TAG, "Failed to delete " + (ids.length - removeResult) + " downloads");
+        if (!dmIds.isEmpty()) {
+          DownloadManager dlManager = (DownloadManager) context.getSystemService(DOWNLOAD_SERVICE);
+          int removeResult = dlManager.remove(toArray(dmIds));
+          if (removeResult != dmIds.size()) {
+            Log.e(TAG, "Failed to delete " + (dmIds.size() - removeResult) + " downloads");
+          }
+        }
+        if (!builtInIds.isEmpty()) {
+          HttpDownloadService.cancelDownloads(context, toArray(builtInIds));
         }
         ContentValues cv = new ContentValues(1);
         cv.put(Provider.K_EDID, 0);
@@ -320,6 +397,15 @@ public class DownloadReceiver extends BroadcastReceiver {
     }
   }
 
+  @NonNull
+  static long[] toArray(@NonNull List<Long> list) {
+    long[] result = new long[list.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = list.get(i);
+    }
+    return result;
+  }
+
   @Override
   public void onReceive(Context context, Intent intent) {
     Preferences preferences = Preferences.getInstance();
@@ -353,10 +439,25 @@ public class DownloadReceiver extends BroadcastReceiver {
           }
           break;
         case DOWNLOAD_HEARTBEAT_ACTION:
-          updateProgress(context);
+          // heartbeats come twice a second, skip this one if previous update is still running
+          if (progressUpdateRunning.compareAndSet(false, true)) {
+            final PendingResult pendingResult = goAsync();
+            final Context appContext = context.getApplicationContext();
+            progressExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  updateProgress(appContext);
+                } finally {
+                  progressUpdateRunning.set(false);
+                  pendingResult.finish();
+                }
+              }
+            });
+          }
           break;
         case UPDATE_QUEUE_ACTION:
-          updateDownloadQueue(context, true);
+          updateDownloadQueue(context, intent.getBooleanExtra(FORCE_EXTRA_NAME, true));
           break;
         case ACTION_NOTIFICATION_CLICKED:
           Intent activityIntet = new Intent(context, MainActivity.class)
@@ -374,53 +475,132 @@ public class DownloadReceiver extends BroadcastReceiver {
     }
   }
 
+  /**
+   * Progress poll runs outside of the lock download completion is processed under, so its updates
+   * are conditional: they are dropped if completion has changed K_EDID since the poll query.
+   */
+  @NonNull
+  private static String getDownloadSelection(long downloadId) {
+    return Provider.K_EDID + " == " + downloadId;
+  }
+
+  /**
+   * Polls DownloadManager for progress of all running downloads with a single query and writes
+   * changed progress values to db in a single transaction. Called from progressExecutor thread.
+   */
   private void updateProgress(Context context) {
-    //TODO call this asynchronously
     Cursor epsCursor = context.getContentResolver().query(
         Provider.episodeUri,
-        new String[]{Provider.K_ID, Provider.K_EDID},
+        new String[]{Provider.K_ID, Provider.K_EDID, Provider.K_EDFIN, Provider.K_ESIZE},
         Provider.K_EDID + " != 0",
         null,
         null);
+    if (epsCursor == null) {
+      Log.wtf(TAG, "Provider query returned null");
+      return;
+    }
+    int idColumn = epsCursor.getColumnIndexOrThrow(Provider.K_ID);
+    int downloadIdColumn = epsCursor.getColumnIndexOrThrow(Provider.K_EDID);
+    int progressColumn = epsCursor.getColumnIndexOrThrow(Provider.K_EDFIN);
+    int sizeColumn = epsCursor.getColumnIndexOrThrow(Provider.K_ESIZE);
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+    List<Long> dmIds = new ArrayList<>(epsCursor.getCount());
+    // download id -> episodes cursor position
+    LongSparseArray<Integer> positions = new LongSparseArray<>(epsCursor.getCount());
     while (epsCursor.moveToNext()) {
-      long downLoadId = epsCursor.getLong(epsCursor.getColumnIndexOrThrow(Provider.K_EDID));
-      long id = epsCursor.getLong(epsCursor.getColumnIndexOrThrow(Provider.K_ID));
+      long downloadId = epsCursor.getLong(downloadIdColumn);
+      if (!HttpDownloadService.isBuiltInDownload(downloadId)) {
+        dmIds.add(downloadId);
+        positions.put(downloadId, epsCursor.getPosition());
+      } else if (!HttpDownloadService.isRunning(HttpDownloadService.getEpisodeId(downloadId))) {
+        // built-in engine writes progress itself, only reset downloads lost with killed process
+        long id = epsCursor.getLong(idColumn);
+        Log.e(TAG, "Built-in download of episode " + id + " isn't running. Resetting K_EDID to 0");
+        operations.add(ContentProviderOperation
+                           .newUpdate(Provider.getUri(Provider.T_EPISODE, id))
+                           .withValue(Provider.K_EDID, 0)
+                           .withSelection(getDownloadSelection(downloadId), null)
+                           .build());
+      }
+    }
+
+    List<Long> lostDownloads = new ArrayList<>();
+    Cursor dlCursor = null;
+    if (!dmIds.isEmpty()) {
       DownloadManager dlManager = (DownloadManager) context.getSystemService(DOWNLOAD_SERVICE);
-      Cursor dlCursor = dlManager.query(new DownloadManager.Query().setFilterById(downLoadId));
-      if (dlCursor != null && dlCursor.moveToFirst()) {
-        int state = dlCursor.getInt(dlCursor.getColumnIndexOrThrow(COLUMN_STATUS));
-        // WORKAROUND: sometimes ACTION_DOWNLOAD_COMPLETE is somehow not received (or there was an
-        // exception in callback), so handle there episodes completed more than a minute ago
-        if (state == STATUS_SUCCESSFUL || state == STATUS_FAILED) {
-          long timestamp = dlCursor.getLong(
-              dlCursor.getColumnIndexOrThrow(COLUMN_LAST_MODIFIED_TIMESTAMP));
-          if (System.currentTimeMillis() - timestamp > 60000) {
-            Log.e(TAG, "Found lost completed download, processing " + downLoadId);
-            processDownloadResult(context, downLoadId);
-          }
-        } else {
-          int got = dlCursor.getInt(dlCursor.getColumnIndexOrThrow(COLUMN_BYTES_DOWNLOADED_SO_FAR));
-          int total = dlCursor.getInt(dlCursor.getColumnIndexOrThrow(COLUMN_TOTAL_SIZE_BYTES));
-          // ignore dubious data. E.g. sometimes it reports total size is -1B or 128B
-          if (got > 0 && total > 1000 && total > got) {
-            ContentValues values = new ContentValues(2);
-            values.put(Provider.K_EDFIN, 99L * got / total);
-            values.put(Provider.K_ESIZE, total);
-            context.getContentResolver().update(
-                Provider.getUri(Provider.T_EPISODE, id), values, null, null);
-          }
+      dlCursor = dlManager.query(new DownloadManager.Query().setFilterById(toArray(dmIds)));
+      if (dlCursor == null) {
+        Log.e(TAG, "DownloadManager query failed");
+        epsCursor.close();
+        return;
+      }
+    }
+    while (dlCursor != null && dlCursor.moveToNext()) {
+      long downloadId = dlCursor.getLong(dlCursor.getColumnIndexOrThrow(COLUMN_ID));
+      Integer position = positions.get(downloadId);
+      if (position == null) {
+        continue;
+      }
+      positions.remove(downloadId);
+      epsCursor.moveToPosition(position);
+      int state = dlCursor.getInt(dlCursor.getColumnIndexOrThrow(COLUMN_STATUS));
+      // WORKAROUND: sometimes ACTION_DOWNLOAD_COMPLETE is somehow not received (or there was an
+      // exception in callback), so handle there episodes completed more than a minute ago
+      if (state == STATUS_SUCCESSFUL || state == STATUS_FAILED) {
+        long timestamp = dlCursor.getLong(
+            dlCursor.getColumnIndexOrThrow(COLUMN_LAST_MODIFIED_TIMESTAMP));
+        if (System.currentTimeMillis() - timestamp > 60000) {
+          lostDownloads.add(downloadId);
         }
       } else {
-        Log.e(TAG, "Failed to obtain download info for episode " + id + ". Resetting K_EDID to 0");
-        ContentValues values = new ContentValues(2);
-        values.put(Provider.K_EDID, 0);
-        context.getContentResolver().update(
-            Provider.getUri(Provider.T_EPISODE, id), values, null, null);
-      }
-      if (dlCursor != null) {
-        dlCursor.close();
+        long got = dlCursor.getLong(dlCursor.getColumnIndexOrThrow(COLUMN_BYTES_DOWNLOADED_SO_FAR));
+        long total = dlCursor.getLong(dlCursor.getColumnIndexOrThrow(COLUMN_TOTAL_SIZE_BYTES));
+        // ignore dubious data. E.g. sometimes it reports total size is -1B or 128B
+        if (got > 0 && total > 1000 && total > got) {
+          int progress = (int) (99L * got / total);
+          if (progress != epsCursor.getInt(progressColumn)
+              || total != epsCursor.getLong(sizeColumn)) {
+            operations.add(ContentProviderOperation
+                               .newUpdate(Provider.getUri(Provider.T_EPISODE,
+                                                          epsCursor.getLong(idColumn)))
+                               .withValue(Provider.K_EDFIN, progress)
+                               .withValue(Provider.K_ESIZE, total)
+                               .withSelection(getDownloadSelection(downloadId), null)
+                               .build());
+          }
+        }
       }
     }
+    if (dlCursor != null) {
+      dlCursor.close();
+    }
+
+    // positions now holds only downloads unknown to DownloadManager
+    for (int i = 0; i < positions.size(); i++) {
+      epsCursor.moveToPosition(positions.valueAt(i));
+      long id = epsCursor.getLong(idColumn);
+      Log.e(TAG, "Failed to obtain download info for episode " + id + ". Resetting K_EDID to 0");
+      operations.add(ContentProviderOperation
+                         .newUpdate(Provider.getUri(Provider.T_EPISODE, id))
+                         .withValue(Provider.K_EDID, 0)
+                         .withSelection(getDownloadSelection(positions.keyAt(i)), null)
+                         .build());
+    }
     epsCursor.close();
+
+    if (!operations.isEmpty()) {
+      try {
+        context.getContentResolver().applyBatch(Provider.authorityBase, operations);
+      } catch (RemoteException | OperationApplicationException exception) {
+        Log.e(TAG, "Failed to update download progress", exception);
+      }
+    }
+
+    for (long downloadId : lostDownloads) {
+      Log.e(TAG, "Found lost completed download, processing " + downloadId);
+      synchronized (Preferences.getInstance()) {
+        processDownloadResult(context, downloadId);
+      }
+    }
   }
 }
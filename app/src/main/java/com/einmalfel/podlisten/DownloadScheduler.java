@@ -0,0 +1,165 @@
+package com.einmalfel.podlisten;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ranks episodes by expected time to play.
+ * Playlist episodes are ranked by their position under current sorting mode counting from the
+ * episode being played (the one following it gets rank 1, etc), so episodes which will be played
+ * soon are downloaded first. Episodes which aren't in playlist come after all playlist episodes.
+ */
+class DownloadScheduler {
+  private static final String TAG = "DLS";
+  static final int NOT_IN_PLAYLIST = Integer.MAX_VALUE;
+  // running download is preempted only by one of PREEMPTION_HORIZON episodes to be played next,
+  // otherwise slow downloads at the end of playlist would be restarted over and over
+  static final int PREEMPTION_HORIZON = 3;
+
+  private static volatile long currentEpisodeId = 0;
+
+  static class Candidate {
+    final long id;
+    final String url;
+    final String title;
+    final int rank;
+    final boolean evicted;
+
+    Candidate(long id, String url, String title, int rank, boolean evicted) {
+      this.id = id;
+      this.url = url;
+      this.title = title;
+      this.rank = rank;
+      this.evicted = evicted;
+    }
+  }
+
+  private DownloadScheduler() {}
+
+  /**
+   * Called by PlayerService when it switches episode. Triggers queue update, as ranks depend on
+   * current episode
+   */
+  static void setCurrentEpisode(@NonNull Context context, long id) {
+    if (id != currentEpisodeId) {
+      currentEpisodeId = id;
+      context.sendBroadcast(DownloadReceiver.getUpdateQueueIntent(context));
+    }
+  }
+
+  /**
+   * @return episode id -> rank mapping for all playlist episodes
+   */
+  @NonNull
+  static LongSparseArray<Integer> getPlaylistRanks(@NonNull Context context) {
+    Cursor cursor = context.getContentResolver().query(
+        Provider.episodeUri,
+        new String[]{Provider.K_ID},
+        Provider.K_ESTATE + " == " + Provider.ESTATE_IN_PLAYLIST,
+        null,
+        Preferences.getInstance().getSortingMode().toSql());
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null while querying provider");
+    }
+    int count = cursor.getCount();
+    long[] ids = new long[count];
+    int current = 0;
+    long currentId = currentEpisodeId;
+    while (cursor.moveToNext()) {
+      ids[cursor.getPosition()] = cursor.getLong(0);
+      if (ids[cursor.getPosition()] == currentId) {
+        current = cursor.getPosition();
+      }
+    }
+    cursor.close();
+
+    LongSparseArray<Integer> result = new LongSparseArray<>(count);
+    for (int i = 0; i < count; i++) {
+      // episodes preceding the current one will be played after playlist wraps around
+      result.put(ids[i], (i - current + count) % count);
+    }
+    return result;
+  }
+
+  static int getRank(@NonNull LongSparseArray<Integer> ranks, long id) {
+    return ranks.get(id, NOT_IN_PLAYLIST);
+  }
+
+  /**
+   * @param condition selection of episodes eligible for download
+   * @return candidates sorted by rank. Episodes of equal rank are ordered by download attempts
+   *     count and publication date
+   */
+  @NonNull
+  static List<Candidate> getQueue(@NonNull Context context, @NonNull String condition,
+                                  @NonNull LongSparseArray<Integer> ranks) {
+    Cursor cursor = context.getContentResolver().query(
+        Provider.episodeUri,
+        new String[]{Provider.K_EAURL, Provider.K_ENAME, Provider.K_ID, Provider.K_EDFIN},
+        condition,
+        null,
+        Provider.K_EDATT + " ASC, " + Provider.K_EDATE + " ASC");
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null while querying provider");
+    }
+    int urlInd = cursor.getColumnIndexOrThrow(Provider.K_EAURL);
+    int titleInd = cursor.getColumnIndexOrThrow(Provider.K_ENAME);
+    int idInd = cursor.getColumnIndexOrThrow(Provider.K_ID);
+    int downloadedInd = cursor.getColumnIndexOrThrow(Provider.K_EDFIN);
+    List<Candidate> result = new ArrayList<>(cursor.getCount());
+    while (cursor.moveToNext()) {
+      long id = cursor.getLong(idInd);
+      result.add(new Candidate(
+          id, cursor.getString(urlInd), cursor.getString(titleInd), getRank(ranks, id),
+          cursor.getInt(downloadedInd) == Provider.EDFIN_EVICTED));
+    }
+    cursor.close();
+
+    // Collections.sort is stable, so query order is preserved among equally ranked candidates
+    Collections.sort(result, new Comparator<Candidate>() {
+      @Override
+      public int compare(Candidate lhs, Candidate rhs) {
+        return lhs.rank < rhs.rank ? -1 : (lhs.rank == rhs.rank ? 0 : 1);
+      }
+    });
+    Log.d(TAG, result.size() + " candidates, current episode " + currentEpisodeId);
+    return result;
+  }
+
+  /**
+   * @return id of running download episode with the worst rank, which is worse than given rank,
+   *     or 0 if there is no such download
+   */
+  static long findPreemptable(@NonNull Context context, @NonNull LongSparseArray<Integer> ranks,
+                              int rank) {
+    Cursor cursor = context.getContentResolver().query(
+        Provider.episodeUri,
+        new String[]{Provider.K_ID},
+        Provider.K_EDID + " != 0 AND " + Provider.K_EDFIN + " < " + Provider.EDFIN_COMPLETE,
+        null,
+        null);
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null while querying provider");
+    }
+    long result = 0;
+    int worstRank = rank;
+    while (cursor.moveToNext()) {
+      long id = cursor.getLong(0);
+      int runningRank = getRank(ranks, id);
+      if (runningRank > worstRank) {
+        worstRank = runningRank;
+        result = id;
+      }
+    }
+    cursor.close();
+    return result;
+  }
+}
@@ -0,0 +1,385 @@
+package com.einmalfel.podlisten;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Extracts media duration from container headers: Xing/Info/VBRI headers or bitrate of the first
+ * frame for MP3, mvhd box for MP4, last page granule position for Ogg Vorbis/Opus, STREAMINFO for
+ * FLAC and data chunk size for WAV. Only a few small regions of a file are read.
+ */
+class DurationParser {
+  private static final String TAG = "DRP";
+  private static final int HEAD_SIZE = 4096;
+  private static final int MPEG_SYNC_SEARCH_SIZE = 64 * 1024;
+  private static final int OGG_TAIL_SIZE = 64 * 1024;
+  private static final int OPUS_SAMPLE_RATE = 48000;
+
+  /**
+   * Header of MPEG audio frame
+   */
+  static class MpegFrameHeader {
+    private static final int[][] BITRATES = new int[][]{ // [kbps]
+        {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448}, // v1 layer 1
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384}, // v1 layer 2
+        {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}, // v1 layer 3
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256}, // v2 layer 1
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}}; // v2 layers 2 and 3
+    private static final int[] SAMPLE_RATES = new int[]{44100, 48000, 32000};
+
+    final boolean mpeg1;
+    final int layer;
+    final int bitrate; // [kbps]
+    final int sampleRate;
+    final int samplesPerFrame;
+    final int frameLength; // [bytes]
+    final boolean mono;
+
+    private MpegFrameHeader(boolean mpeg1, int layer, int bitrate, int sampleRate,
+                            int samplesPerFrame, int frameLength, boolean mono) {
+      this.mpeg1 = mpeg1;
+      this.layer = layer;
+      this.bitrate = bitrate;
+      this.sampleRate = sampleRate;
+      this.samplesPerFrame = samplesPerFrame;
+      this.frameLength = frameLength;
+      this.mono = mono;
+    }
+
+    /**
+     * @return null if there is no valid frame header at offset
+     */
+    @Nullable
+    static MpegFrameHeader parse(@NonNull byte[] data, int offset, int length) {
+      if (offset + 4 > length) {
+        return null;
+      }
+      int b1 = data[offset + 1] & 0xFF;
+      int b2 = data[offset + 2] & 0xFF;
+      int version = (b1 >> 3) & 3; // 0 - MPEG 2.5, 1 - reserved, 2 - MPEG 2, 3 - MPEG 1
+      int layer = 4 - ((b1 >> 1) & 3);
+      int bitrateIndex = b2 >> 4;
+      int sampleRateIndex = (b2 >> 2) & 3;
+      if ((data[offset] & 0xFF) != 0xFF || (b1 & 0xE0) != 0xE0 || version == 1 || layer == 4
+          || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+        return null;
+      }
+      boolean mpeg1 = version == 3;
+      int bitrate = BITRATES[mpeg1 ? layer - 1 : (layer == 1 ? 3 : 4)][bitrateIndex];
+      int sampleRate = SAMPLE_RATES[sampleRateIndex] >> (mpeg1 ? 0 : (version == 2 ? 1 : 2));
+      int padding = (b2 >> 1) & 1;
+      int samplesPerFrame;
+      int frameLength;
+      if (layer == 1) {
+        samplesPerFrame = 384;
+        frameLength = (12 * bitrate * 1000 / sampleRate + padding) * 4;
+      } else {
+        samplesPerFrame = layer == 3 && !mpeg1 ? 576 : 1152;
+        frameLength = samplesPerFrame / 8 * bitrate * 1000 / sampleRate + padding;
+      }
+      boolean mono = ((data[offset + 3] & 0xFF) >> 6) == 3;
+      return new MpegFrameHeader(
+          mpeg1, layer, bitrate, sampleRate, samplesPerFrame, frameLength, mono);
+    }
+
+    /**
+     * @return offset of Xing/Info header relative to frame start
+     */
+    int getXingOffset() {
+      if (mpeg1) {
+        return mono ? 4 + 17 : 4 + 32;
+      } else {
+        return mono ? 4 + 9 : 4 + 17;
+      }
+    }
+  }
+
+  private DurationParser() {}
+
+  /**
+   * @return duration in ms or 0 if it couldn't be determined
+   */
+  static long getDuration(@NonNull File file) {
+    RandomAccessFile randomAccessFile = null;
+    try {
+      randomAccessFile = new RandomAccessFile(file, "r");
+      byte[] head = new byte[HEAD_SIZE];
+      int length = read(randomAccessFile, 0, head);
+      switch (AudioSniffer.sniff(head, length)) {
+        case MP3:
+          return getMpegDuration(randomAccessFile);
+        case MP4:
+          return getMp4Duration(randomAccessFile);
+        case OGG:
+          return getOggDuration(randomAccessFile, head, length);
+        case FLAC:
+          return getFlacDuration(head, 0, length);
+        case RIFF:
+          return getWavDuration(randomAccessFile);
+        default:
+          return 0;
+      }
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to read " + file, exception);
+      return 0;
+    } finally {
+      if (randomAccessFile != null) {
+        try {
+          randomAccessFile.close();
+        } catch (IOException exception) {
+          Log.wtf(TAG, "Failed to close stream", exception);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return number of bytes read, less then buffer size only if end of file is reached
+   */
+  static int read(@NonNull RandomAccessFile file, long position, @NonNull byte[] buffer)
+      throws IOException {
+    file.seek(position);
+    int length = 0;
+    int read;
+    while (length < buffer.length
+        && (read = file.read(buffer, length, buffer.length - length)) > 0) {
+      length += read;
+    }
+    return length;
+  }
+
+  /**
+   * @return size of ID3v2 tag at the beginning of the file, 0 if there is no tag
+   */
+  static long getId3Size(@NonNull byte[] head, int length) {
+    if (length < 10 || head[0] != 'I' || head[1] != 'D' || head[2] != '3') {
+      return 0;
+    }
+    long size = ((head[6] & 0x7F) << 21) | ((head[7] & 0x7F) << 14) | ((head[8] & 0x7F) << 7)
+        | (head[9] & 0x7F);
+    boolean hasFooter = (head[5] & 0x10) != 0;
+    return 10 + size + (hasFooter ? 10 : 0);
+  }
+
+  private static long getMpegDuration(@NonNull RandomAccessFile file) throws IOException {
+    byte[] buffer = new byte[MPEG_SYNC_SEARCH_SIZE];
+    int length = read(file, 0, buffer);
+    long audioStart = getId3Size(buffer, length);
+    if (audioStart != 0) {
+      length = read(file, audioStart, buffer);
+      // some apps put ID3 tag in front of FLAC stream
+      if (length >= 4 && buffer[0] == 'f' && buffer[1] == 'L' && buffer[2] == 'a'
+          && buffer[3] == 'C') {
+        return getFlacDuration(buffer, 0, length);
+      }
+    }
+
+    // skip garbage before the first frame, two consecutive headers are required to avoid false sync
+    MpegFrameHeader header = null;
+    int offset = 0;
+    for (; offset < length - 4; offset++) {
+      header = MpegFrameHeader.parse(buffer, offset, length);
+      if (header != null) {
+        int next = offset + header.frameLength;
+        if (next + 4 > length || MpegFrameHeader.parse(buffer, next, length) != null) {
+          break;
+        }
+        header = null;
+      }
+    }
+    if (header == null) {
+      return 0;
+    }
+
+    long frames = getXingFrames(buffer, offset + header.getXingOffset(), length);
+    if (frames == 0) {
+      frames = getVbriFrames(buffer, offset + 4 + 32, length);
+    }
+    if (frames > 0) {
+      return frames * header.samplesPerFrame * 1000 / header.sampleRate;
+    }
+
+    // no VBR header, assume constant bitrate
+    long audioEnd = file.length();
+    byte[] tag = new byte[3];
+    if (audioEnd >= 128 && read(file, audioEnd - 128, tag) == 3
+        && tag[0] == 'T' && tag[1] == 'A' && tag[2] == 'G') {
+      audioEnd -= 128; // ID3v1 tag
+    }
+    return (audioEnd - audioStart - offset) * 8 / header.bitrate;
+  }
+
+  /**
+   * @return true if frame at offset carries Xing/Info or VBRI header instead of audio
+   */
+  static boolean isInfoFrame(@NonNull byte[] data, int offset, int length,
+                             @NonNull MpegFrameHeader header) {
+    int xingOffset = offset + header.getXingOffset();
+    return matches(data, xingOffset, length, "Xing") || matches(data, xingOffset, length, "Info")
+        || matches(data, offset + 4 + 32, length, "VBRI");
+  }
+
+  /**
+   * @return number of frames stored in Xing/Info header, 0 if there is no such header
+   */
+  private static long getXingFrames(@NonNull byte[] data, int offset, int length) {
+    if (!(matches(data, offset, length, "Xing") || matches(data, offset, length, "Info"))
+        || offset + 12 > length) {
+      return 0;
+    }
+    boolean framesPresent = (data[offset + 7] & 1) != 0;
+    return framesPresent ? readUInt32(data, offset + 8) : 0;
+  }
+
+  /**
+   * @return number of frames stored in VBRI header, 0 if there is no such header
+   */
+  private static long getVbriFrames(@NonNull byte[] data, int offset, int length) {
+    if (!matches(data, offset, length, "VBRI") || offset + 18 > length) {
+      return 0;
+    }
+    return readUInt32(data, offset + 14);
+  }
+
+  private static long getMp4Duration(@NonNull RandomAccessFile file) throws IOException {
+    long position = 0;
+    long end = file.length();
+    byte[] header = new byte[16];
+    // descend into moov, skipping everything else (most notably, mdat) by box size
+    while (position + 8 <= end) {
+      if (read(file, position, header) < 8) {
+        return 0;
+      }
+      long size = readUInt32(header, 0);
+      long headerSize = 8;
+      if (size == 1) {
+        size = (readUInt32(header, 8) << 32) | readUInt32(header, 12);
+        headerSize = 16;
+      } else if (size == 0) {
+        size = end - position;
+      }
+      if (size < headerSize) {
+        Log.e(TAG, "Malformed MP4 box at " + position);
+        return 0;
+      }
+      if (matches(header, 4, 8, "moov")) {
+        end = position + size;
+        position += headerSize;
+      } else if (matches(header, 4, 8, "mvhd")) {
+        byte[] mvhd = new byte[32];
+        int length = read(file, position + headerSize, mvhd);
+        boolean version1 = mvhd[0] == 1;
+        if (length < (version1 ? 32 : 20)) {
+          return 0;
+        }
+        long timescale = readUInt32(mvhd, version1 ? 20 : 12);
+        long duration = version1
+            ? (readUInt32(mvhd, 24) << 32) | readUInt32(mvhd, 28)
+            : readUInt32(mvhd, 16);
+        return timescale == 0 ? 0 : duration * 1000 / timescale;
+      } else {
+        position += size;
+      }
+    }
+    return 0;
+  }
+
+  private static long getOggDuration(@NonNull RandomAccessFile file, @NonNull byte[] head,
+                                     int headLength) throws IOException {
+    // first page contains codec identification header
+    if (headLength < 28) {
+      return 0;
+    }
+    int packet = 27 + (head[26] & 0xFF);
+    long sampleRate;
+    long preSkip = 0;
+    if (matches(head, packet, headLength, "\u0001vorbis") && packet + 16 <= headLength) {
+      sampleRate = readUInt32Le(head, packet + 12);
+    } else if (matches(head, packet, headLength, "OpusHead") && packet + 12 <= headLength) {
+      sampleRate = OPUS_SAMPLE_RATE; // granule position is always in 48kHz units for opus
+      preSkip = (head[packet + 10] & 0xFF) | ((head[packet + 11] & 0xFF) << 8);
+    } else {
+      return 0;
+    }
+    if (sampleRate == 0) {
+      return 0;
+    }
+
+    // granule position of the last page is the number of samples in stream
+    long tailStart = Math.max(0, file.length() - OGG_TAIL_SIZE);
+    byte[] tail = new byte[(int) (file.length() - tailStart)];
+    int length = read(file, tailStart, tail);
+    for (int offset = length - 14; offset >= 0; offset--) {
+      if (matches(tail, offset, length, "OggS")) {
+        long granule = readUInt32Le(tail, offset + 6) | (readUInt32Le(tail, offset + 10) << 32);
+        if (granule > 0) {
+          return Math.max(0, granule - preSkip) * 1000 / sampleRate;
+        }
+      }
+    }
+    return 0;
+  }
+
+  private static long getFlacDuration(@NonNull byte[] data, int offset, int length) {
+    // STREAMINFO is mandatory and always the first metadata block
+    if (offset + 26 > length || (data[offset + 4] & 0x7F) != 0) {
+      return 0;
+    }
+    int info = offset + 8 + 10; // skip fLaC, block header, block and frame sizes
+    long sampleRate = ((data[info] & 0xFF) << 12) | ((data[info + 1] & 0xFF) << 4)
+        | ((data[info + 2] & 0xFF) >> 4);
+    long samples = ((long) (data[info + 3] & 0x0F) << 32) | readUInt32(data, info + 4);
+    return sampleRate == 0 ? 0 : samples * 1000 / sampleRate;
+  }
+
+  private static long getWavDuration(@NonNull RandomAccessFile file) throws IOException {
+    byte[] header = new byte[12];
+    if (read(file, 0, header) < 12 || !matches(header, 8, 12, "WAVE")) {
+      return 0;
+    }
+    long position = 12;
+    long byteRate = 0;
+    long end = file.length();
+    byte[] chunk = new byte[20];
+    while (position + 8 <= end) {
+      int length = read(file, position, chunk);
+      long size = readUInt32Le(chunk, 4);
+      if (matches(chunk, 0, length, "fmt ") && length >= 20) {
+        byteRate = readUInt32Le(chunk, 8 + 8); // skip chunk header, format, channels, sample rate
+      } else if (matches(chunk, 0, length, "data")) {
+        return byteRate == 0 ? 0 : size * 1000 / byteRate;
+      }
+      position += 8 + size + (size & 1); // chunks are word-aligned
+    }
+    return 0;
+  }
+
+  /** signature characters are treated as ISO-8859-1 bytes */
+  private static boolean matches(@NonNull byte[] data, int offset, int length,
+                                 @NonNull String signature) {
+    if (offset < 0 || offset + signature.length() > length) {
+      return false;
+    }
+    for (int i = 0; i < signature.length(); i++) {
+      if ((data[offset + i] & 0xFF) != signature.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static long readUInt32(@NonNull byte[] data, int offset) {
+    return ((long) (data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+        | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+  }
+
+  private static long readUInt32Le(@NonNull byte[] data, int offset) {
+    return ((long) (data[offset + 3] & 0xFF) << 24) | ((data[offset + 2] & 0xFF) << 16)
+        | ((data[offset + 1] & 0xFF) << 8) | (data[offset] & 0xFF);
+  }
+}
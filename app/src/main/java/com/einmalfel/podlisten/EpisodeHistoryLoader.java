@@ -0,0 +1,92 @@
+package com.einmalfel.podlisten;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Loads episodes of a podcast, newest first, page by page on demand. Each page is queried with
+ * keyset pagination on (publication date, id), which the provider serves by an index range scan,
+ * and pages are merged into a single cursor. Page cursors are small enough to fit a CursorWindow,
+ * so scrolling long feed histories doesn't cause window refills, and pages past the last requested
+ * one are never queried.
+ */
+class EpisodeHistoryLoader extends DiffCursorLoader {
+  static final int PAGE_SIZE = 50;
+
+  private final long podcastId;
+  private final String[] projection;
+  private final ForceLoadContentObserver observer = new ForceLoadContentObserver();
+  private volatile int pages = 1; // written on UI thread only
+  private volatile boolean exhausted = false; // last load got all the episodes
+  private boolean pageRequested = false;
+
+  /**
+   * @param projection should include Provider.K_ID and Provider.K_EDATE
+   */
+  EpisodeHistoryLoader(@NonNull Context context, long podcastId, @NonNull String[] projection) {
+    super(context, Provider.episodeUri, projection, null, null, Provider.KEYSET_ORDER,
+          EPISODE_SIGNATURE_COLUMNS);
+    this.podcastId = podcastId;
+    this.projection = projection;
+  }
+
+  /**
+   * Loads one more page unless all episodes are loaded already or a page is being loaded
+   */
+  void requestNextPage() {
+    if (!exhausted && !pageRequested) {
+      pageRequested = true;
+      pages++;
+      onContentChanged();
+    }
+  }
+
+  @Override
+  protected Cursor loadCursor() {
+    int pagesToLoad = pages;
+    ContentResolver resolver = getContext().getContentResolver();
+    Uri uri = Provider.getLimitedUri(Provider.episodeUri, PAGE_SIZE);
+    String podcastSelection = Provider.K_EPID + " == " + podcastId;
+    String selection = podcastSelection;
+    Cursor[] cursors = new Cursor[pagesToLoad];
+    int loaded = 0;
+    boolean last = false;
+    while (loaded < pagesToLoad && !last) {
+      Cursor page = resolver.query(uri, projection, selection, null, Provider.KEYSET_ORDER);
+      if (page == null) {
+        throw new AssertionError("Unexpectedly got null while querying provider");
+      }
+      cursors[loaded++] = page;
+      last = page.getCount() < PAGE_SIZE; // getCount also fills the window on loader thread
+      if (!last && page.moveToLast()) {
+        selection = podcastSelection + " AND " + Provider.getKeysetSelection(
+            page.getLong(page.getColumnIndexOrThrow(Provider.K_EDATE)),
+            page.getLong(page.getColumnIndexOrThrow(Provider.K_ID)));
+      }
+    }
+    exhausted = last;
+    Cursor result = new MergeCursor(Arrays.copyOf(cursors, loaded));
+    result.registerContentObserver(observer);
+    return result;
+  }
+
+  @Override
+  public void deliverResult(Cursor cursor) {
+    pageRequested = false;
+    super.deliverResult(cursor);
+  }
+
+  @Override
+  protected void onReset() {
+    super.onReset();
+    pages = 1;
+    exhausted = false;
+    pageRequested = false;
+  }
+}
@@ -7,7 +7,8 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-public class EpisodeListAdapter extends BaseCursorRecyclerAdapter<EpisodeViewHolder> {
+public class EpisodeListAdapter extends BaseCursorRecyclerAdapter<EpisodeViewHolder>
+    implements ImagePrefetcher.ImageSource {
   public interface ItemClickListener {
     /**
      * @return true if event was consumed
@@ -35,12 +36,16 @@ public class EpisodeListAdapter extends BaseCursorRecyclerAdapter<EpisodeViewHol
 
   void setCurrentIdState(long id, PlayerService.State state) {
     if (id != currentPlayingId || currentState != state) {
+      final long previousId = currentPlayingId;
       currentPlayingId = id;
       currentState = state;
       new Handler(Looper.getMainLooper()).post(new Runnable() {
         @Override
         public void run() {
-          notifyDataSetChanged();
+          notifyIdChanged(previousId);
+          if (previousId != currentPlayingId) {
+            notifyIdChanged(currentPlayingId);
+          }
         }
       });
     }
@@ -70,6 +75,20 @@ public class EpisodeListAdapter extends BaseCursorRecyclerAdapter<EpisodeViewHol
         expandedElements.contains(id));
   }
 
+  @Override
+  public long getImageId(int position) {
+    return getItemId(position);
+  }
+
+  @Override
+  public long getFallbackImageId(int position) {
+    Cursor cursor = getCursor();
+    if (cursor == null || cursor.isClosed() || !cursor.moveToPosition(position)) {
+      return 0;
+    }
+    return cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_EPID));
+  }
+
   @Override
   public EpisodeViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
     View view = LayoutInflater.from(parent.getContext())
@@ -8,7 +8,7 @@ import android.graphics.drawable.Drawable;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.RecyclerView;
-import android.text.Html;
+import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.method.LinkMovementMethod;
 import android.view.View;
@@ -19,7 +19,8 @@ import android.widget.TextView;
 
 import com.einmalfel.podlisten.support.UnitConverter;
 
-public class EpisodeViewHolder extends RecyclerView.ViewHolder {
+public class EpisodeViewHolder extends RecyclerView.ViewHolder
+    implements DescriptionCache.Listener {
   private static final String TAG = "EVH";
 
   private final Context context;
@@ -44,12 +45,26 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
   private final FrameLayout playAddFrame;
   private final CardView cardView;
   private final TextView episdoeUrlView;
+  // strings and buffers reused by bindEpisode, so that re-binding doesn't allocate
+  private final String hourAbbreviation;
+  private final String minuteAbbreviation;
+  private final String downloadDescription;
+  private final String addDescription;
+  private final String pauseDescription;
+  private final String playDescription;
+  private final StringBuilder timeSizeBuilder = new StringBuilder(16);
+  private char[] timeSizeChars = new char[16];
+  private int textColor = 0; // 0 if not set yet, colors used are opaque
+  private int urlColor = 0;
+  private long imageId = 0; // id of episode or feed whose image is shown, 0 if none
+  private String imageHash; // hash of image shown, see ImageManager.getImageHash
   private long id = 0;
   private boolean expanded = false;
   private int downloaded = -1;
   private int state;
   private String title;
   private String audioUrl;
+  private String description;
 
   public EpisodeViewHolder(final Context context,
                            final View layout,
@@ -74,6 +89,9 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
     relativeLayout.setOnClickListener(new View.OnClickListener() {
       @Override
       public void onClick(View view) {
+        if (!expanded && !TextUtils.isEmpty(description)) {
+          DescriptionCache.getInstance().load(id, description, null); // parse while card expands
+        }
         adapter.setExpanded(id, !expanded, getAdapterPosition());
       }
     });
@@ -116,6 +134,12 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
                                                       R.mipmap.ic_file_download_white_36dp);
     loadingButtonDrawable.mutate().setColorFilter(MainActivity.disabledFilter);
     loadButtonDrawable = ContextCompat.getDrawable(context, R.mipmap.ic_file_download_white_36dp);
+    hourAbbreviation = context.getString(R.string.hour_abbreviation);
+    minuteAbbreviation = context.getString(R.string.minute_abbreviation);
+    downloadDescription = context.getString(R.string.episode_action_download);
+    addDescription = context.getString(R.string.episode_action_add);
+    pauseDescription = context.getString(R.string.episode_action_pause);
+    playDescription = context.getString(R.string.episode_action_play);
   }
 
   long getId() {
@@ -123,6 +147,10 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
   }
 
   private void setTextColor(int color) {
+    if (color == textColor) {
+      return; // TextView.setTextColor allocates ColorStateList on older platforms
+    }
+    textColor = color;
     feedTitleText.setTextColor(color);
     descriptionText.setTextColor(color);
     timeSizeText.setTextColor(color);
@@ -133,13 +161,22 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
                           String feedTitle, long played, long length, long date, int downloaded,
                           String shortDescr, String errorMessage, PlayerService.State playerState,
                           String url, long downloadId, String audioUrl, boolean expanded) {
+    String urlText;
+    int newUrlColor;
     if (errorMessage == null) {
-      episdoeUrlView.setText(TextUtils.isEmpty(url) ? audioUrl : url);
-      episdoeUrlView.setTextColor(ContextCompat.getColor(
-          context, playerState.isStopped() ? R.color.text : R.color.text_bright));
+      urlText = TextUtils.isEmpty(url) ? audioUrl : url;
+      newUrlColor = ContextCompat.getColor(
+          context, playerState.isStopped() ? R.color.text : R.color.text_bright);
     } else {
-      episdoeUrlView.setTextColor(ContextCompat.getColor(context, R.color.accent_secondary));
-      episdoeUrlView.setText(errorMessage);
+      urlText = errorMessage;
+      newUrlColor = ContextCompat.getColor(context, R.color.accent_secondary);
+    }
+    if (!TextUtils.equals(urlText, episdoeUrlView.getText())) {
+      episdoeUrlView.setText(urlText); // setting text re-creates layout even if text is the same
+    }
+    if (newUrlColor != urlColor) {
+      urlColor = newUrlColor;
+      episdoeUrlView.setTextColor(newUrlColor);
     }
 
     if (id != this.id || expanded != this.expanded) {
@@ -148,8 +185,13 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
         dividerBottom.setVisibility(View.GONE);
         descriptionText.setVisibility(View.GONE);
       } else {
-        if (expanded) {
-          descriptionText.setText(Html.fromHtml(description), TextView.BufferType.SPANNABLE);
+        Spanned parsed = expanded ? DescriptionCache.getInstance().get(id, description) : null;
+        if (parsed != null) {
+          descriptionText.setText(parsed, TextView.BufferType.SPANNABLE);
+        } else if (expanded) {
+          // show short description until the full one is parsed in background
+          descriptionText.setText(shortDescr, TextView.BufferType.NORMAL);
+          DescriptionCache.getInstance().load(id, description, this);
         } else {
           descriptionText.setText(shortDescr, TextView.BufferType.NORMAL);
         }
@@ -199,12 +241,16 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
       } else {
         progressBar.setIndeterminate(false);
         progressBar.setMax(100);
-        progressBar.setProgress(downloaded == Provider.EDFIN_ERROR ? 0 : (int) downloaded);
+        progressBar.setProgress(
+            downloaded == Provider.EDFIN_ERROR || downloaded == Provider.EDFIN_EVICTED
+                ? 0 : (int) downloaded);
       }
     }
 
-    if (downloaded != Provider.EDFIN_COMPLETE && state != Provider.ESTATE_NEW) {
-      buttonImage.setContentDescription(context.getString(R.string.episode_action_download));
+    // with streaming enabled not downloaded episodes are played right away
+    if (downloaded != Provider.EDFIN_COMPLETE && state != Provider.ESTATE_NEW
+        && !Preferences.getInstance().getStreaming()) {
+      buttonImage.setContentDescription(downloadDescription);
       if (downloadId == 0) {
         playAddFrame.setEnabled(true);
         buttonImage.setImageDrawable(loadButtonDrawable);
@@ -216,39 +262,59 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
       playAddFrame.setEnabled(true);
       if (state == Provider.ESTATE_NEW) {
         buttonImage.setImageDrawable(addButtonDrawable);
-        buttonImage.setContentDescription(context.getString(R.string.episode_action_add));
+        buttonImage.setContentDescription(addDescription);
       } else if (playerState == PlayerService.State.PLAYING) {
         buttonImage.setImageDrawable(pauseButtonDrawable);
-        buttonImage.setContentDescription(context.getString(R.string.episode_action_pause));
+        buttonImage.setContentDescription(pauseDescription);
       } else {
         buttonImage.setImageDrawable(playButtonDrawable);
-        buttonImage.setContentDescription(context.getString(R.string.episode_action_play));
+        buttonImage.setContentDescription(playDescription);
       }
     }
 
     if ((downloaded == Provider.EDFIN_COMPLETE && this.downloaded != Provider.EDFIN_COMPLETE)
         || id != this.id) {
-      StringBuilder timeSize = new StringBuilder();
+      timeSizeBuilder.setLength(0);
       if (length > 0) {
-        timeSize.append(PodcastHelper.shortFormatDurationMs(length, context));
-        timeSize.append(" ");
+        PodcastHelper.appendDurationMs(timeSizeBuilder, length, hourAbbreviation,
+                                       minuteAbbreviation);
+        timeSizeBuilder.append(' ');
       }
       if (size > 1024) {
-        timeSize.append(PodcastHelper.humanReadableByteCount(size, true));
+        PodcastHelper.appendByteCount(timeSizeBuilder, size, true);
+      }
+      // unlike setText(CharSequence), char array slice is shown without copying it to a string
+      if (timeSizeChars.length < timeSizeBuilder.length()) {
+        timeSizeChars = new char[timeSizeBuilder.length()];
       }
-      timeSizeText.setText(timeSize);
+      timeSizeBuilder.getChars(0, timeSizeBuilder.length(), timeSizeChars, 0);
+      timeSizeText.setText(timeSizeChars, 0, timeSizeBuilder.length());
       dateText.setText(PodcastHelper.shortDateFormat(date));
     }
 
-    // use feed image if there is no episode image
-    Bitmap image = ImageManager.getInstance().getImage(id);
-    if (image == null) {
-      image = ImageManager.getInstance().getImage(pid);
+    // use feed image if there is no episode image. Image is loaded only if it differs from the one
+    // shown, hash lookup is cheap and catches images downloaded since previous bind
+    ImageManager imageManager = ImageManager.getInstance();
+    long newImageId = id;
+    String newImageHash = imageManager.getImageHash(id);
+    if (newImageHash == null) {
+      newImageId = pid;
+      newImageHash = imageManager.getImageHash(pid);
     }
-    if (image == null) {
-      episodeImage.setImageResource(R.drawable.logo);
-    } else {
-      episodeImage.setImageBitmap(image);
+    if (newImageHash == null) {
+      newImageId = 0;
+    }
+    if (newImageId != imageId || !TextUtils.equals(newImageHash, imageHash)) {
+      Bitmap image = newImageId == 0 ? null : imageManager.getImage(newImageId);
+      if (image == null) {
+        episodeImage.setImageResource(R.drawable.logo);
+        newImageId = 0; // retry on next bind if stored image failed to load
+        newImageHash = null;
+      } else {
+        episodeImage.setImageBitmap(image);
+      }
+      imageId = newImageId;
+      imageHash = newImageHash;
     }
 
     this.id = id;
@@ -257,5 +323,16 @@ public class EpisodeViewHolder extends RecyclerView.ViewHolder {
     this.title = title;
     this.state = state;
     this.audioUrl = audioUrl;
+    this.description = description;
+  }
+
+  @Override
+  public void onDescriptionLoaded(long id) {
+    if (id == this.id && expanded && !TextUtils.isEmpty(description)) {
+      Spanned parsed = DescriptionCache.getInstance().get(id, description);
+      if (parsed != null) {
+        descriptionText.setText(parsed, TextView.BufferType.SPANNABLE);
+      }
+    }
   }
 }
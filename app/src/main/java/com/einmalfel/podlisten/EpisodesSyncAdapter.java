@@ -62,6 +62,9 @@ public class EpisodesSyncAdapter extends AbstractThreadedSyncAdapter {
 
     syncState.start(cursor.getCount());
 
+    // no-op unless there are images left by previous PodListen versions
+    ImageManager.getInstance().migrateLegacyImages();
+
     ExecutorService executorService = Executors.newFixedThreadPool(WORKERS_NUMBER);
     while (cursor.moveToNext()) {
       long id = cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_ID));
@@ -8,11 +8,19 @@ import android.view.ViewGroup;
 class FeedHistoryAdapter extends BaseCursorRecyclerAdapter {
   public interface HistoryEpisodeListener {
     void onEpisodeButtonTap(long id, int state);
+
+    /**
+     * Called when an element close to the end of the list is bound, so the next page should be
+     * loaded
+     */
+    void onEndApproached();
   }
 
+  private static final int PREFETCH_DISTANCE = 10; // [elements]
+
   static final String[] COLUMNS_NEEDED = new String[]{
-      Provider.K_ENAME, Provider.K_EURL, Provider.K_EDATE, Provider.K_EDESCR, Provider.K_ESDESCR,
-      Provider.K_ID, Provider.K_ESTATE, Provider.K_EPLAYED};
+      Provider.K_ENAME, Provider.K_EURL, Provider.K_EDATE, Provider.K_ESDESCR, Provider.K_ID,
+      Provider.K_ESTATE, Provider.K_EPLAYED};
 
   private final HistoryEpisodeListener listener;
 
@@ -26,7 +34,6 @@ class FeedHistoryAdapter extends BaseCursorRecyclerAdapter {
     long id = cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_ID));
     HistoryElementHolder historyElementHolder = (HistoryElementHolder) holder;
     historyElementHolder.bind(cursor.getString(cursor.getColumnIndexOrThrow(Provider.K_ENAME)),
-                              cursor.getString(cursor.getColumnIndexOrThrow(Provider.K_EDESCR)),
                               cursor.getString(cursor.getColumnIndexOrThrow(Provider.K_ESDESCR)),
                               cursor.getString(cursor.getColumnIndexOrThrow(Provider.K_EURL)),
                               cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_EDATE)),
@@ -34,6 +41,9 @@ class FeedHistoryAdapter extends BaseCursorRecyclerAdapter {
                               cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_EPLAYED)),
                               id,
                               expandedElements.contains(id));
+    if (cursor.getPosition() >= getItemCount() - PREFETCH_DISTANCE) {
+      listener.onEndApproached();
+    }
   }
 
   @Override
@@ -9,7 +9,6 @@ import android.support.annotation.Nullable;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.ContextCompat;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.DefaultItemAnimator;
@@ -111,14 +110,17 @@ public class FeedHistoryFragment extends DialogFragment implements
     }
   }
 
+  @Override
+  public void onEndApproached() {
+    Loader<Cursor> loader = getLoaderManager().getLoader(LOADER_ID);
+    if (loader instanceof EpisodeHistoryLoader) {
+      ((EpisodeHistoryLoader) loader).requestNextPage();
+    }
+  }
+
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new CursorLoader(getContext(),
-                            Provider.episodeUri,
-                            FeedHistoryAdapter.COLUMNS_NEEDED,
-                            Provider.K_EPID + " == " + podcastId,
-                            null,
-                            Provider.K_EDATE + " DESC");
+    return new EpisodeHistoryLoader(getContext(), podcastId, FeedHistoryAdapter.COLUMNS_NEEDED);
   }
 
   @Override
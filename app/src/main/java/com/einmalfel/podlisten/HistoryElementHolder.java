@@ -1,6 +1,8 @@
 package com.einmalfel.podlisten;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.RecyclerView;
@@ -52,10 +54,12 @@ public class HistoryElementHolder extends RecyclerView.ViewHolder {
     });
   }
 
-  public void bind(String title, String description, String shortDescr, String url, long date,
-                   int state, long played, long id, boolean expanded) {
-    if ((id != this.id || expanded != this.expanded) && !TextUtils.isEmpty(description)) {
-      if (expanded) {
+  public void bind(String title, String shortDescr, String url, long date, int state, long played,
+                   long id, boolean expanded) {
+    if ((id != this.id || expanded != this.expanded) && !TextUtils.isEmpty(shortDescr)) {
+      // full description is large, it's queried when element is expanded instead of list loading
+      String description = expanded ? loadDescription(id) : null;
+      if (description != null) {
         descriptionView.setText(Html.fromHtml(description), TextView.BufferType.SPANNABLE);
       } else {
         descriptionView.setText(shortDescr, TextView.BufferType.NORMAL);
@@ -65,8 +69,8 @@ public class HistoryElementHolder extends RecyclerView.ViewHolder {
     if (id != this.id) {
       titleView.setText(title);
       urlView.setText(url);
-      descriptionView.setVisibility(TextUtils.isEmpty(description) ? View.GONE : View.VISIBLE);
-      dividerBottom.setVisibility(TextUtils.isEmpty(description) ? View.GONE : View.VISIBLE);
+      descriptionView.setVisibility(TextUtils.isEmpty(shortDescr) ? View.GONE : View.VISIBLE);
+      dividerBottom.setVisibility(TextUtils.isEmpty(shortDescr) ? View.GONE : View.VISIBLE);
       dateView.setText(
           context.getString(R.string.episode_published, PodcastHelper.shortDateFormat(date)));
       this.id = id;
@@ -105,4 +109,18 @@ public class HistoryElementHolder extends RecyclerView.ViewHolder {
       this.expanded = expanded;
     }
   }
+
+  @Nullable
+  private String loadDescription(long id) {
+    Cursor cursor = context.getContentResolver().query(
+        Provider.getUri(Provider.T_EPISODE, id), new String[]{Provider.K_EDESCR}, null, null, null);
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null while querying provider");
+    }
+    try {
+      return cursor.moveToFirst() ? cursor.getString(0) : null;
+    } finally {
+      cursor.close();
+    }
+  }
 }
@@ -0,0 +1,633 @@
+package com.einmalfel.podlisten;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads one episode straight to its place in podcast dir.
+ * File is split into parts (one part unless file is big and server supports Range requests), each
+ * part is loaded by its own connection. Progress of parts is periodically saved to state file, so
+ * that interrupted download is resumed with Range requests. If-Range header with ETag or
+ * Last-Modified validator guarantees that parts of different versions of a file aren't mixed.
+ */
+class HttpDownload implements Runnable {
+  interface Listener {
+    void onFinished(@NonNull HttpDownload download);
+  }
+
+  private static final String TAG = "HDL";
+  private static final String STATE_FILE_EXTENSION = ".part";
+  private static final Charset STATE_CHARSET = Charset.forName("UTF-8");
+  private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile(
+      "bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long PARALLEL_MIN_SIZE = 10 * 1024 * 1024;
+  private static final long STATE_SAVE_INTERVAL_MS = 2000;
+  private static final int TIMEOUT_MS = 15000;
+  private static final int MAX_REDIRECTS = 5;
+  private static final int HTTP_TEMPORARY_REDIRECT = 307;
+  private static final int HTTP_PERMANENT_REDIRECT = 308;
+
+  final long id;
+  private final Context context;
+  private final URL url;
+  private final File target;
+  private final File stateFile;
+  private final int connections;
+  private final ExecutorService partsExecutor;
+  private final Listener listener;
+  private volatile boolean cancelled = false;
+  private volatile boolean aborted = false; // set when one of parts failed to stop the others
+
+  // fields below are guarded by this
+  @Nullable
+  private String validator; // ETag or Last-Modified value
+  private long total; // -1 if unknown
+  private long[] starts;
+  private long[] ends; // exclusive, Long.MAX_VALUE if total size is unknown
+  private long[] positions;
+  private int lastProgress = -1;
+  private long lastStateSave;
+  private boolean finished = false;
+  private boolean complete = false;
+  private boolean failed = false;
+
+  HttpDownload(@NonNull Context context, long id, @NonNull URL url, @NonNull File dir,
+               int connections, @NonNull ExecutorService partsExecutor,
+               @NonNull Listener listener) {
+    this.context = context;
+    this.id = id;
+    this.url = url;
+    this.target = new File(dir, Long.toString(id));
+    this.stateFile = getStateFile(dir, id);
+    this.connections = connections;
+    this.partsExecutor = partsExecutor;
+    this.listener = listener;
+  }
+
+  /**
+   * @return file holding resume info of download of episode id to dir
+   */
+  @NonNull
+  static File getStateFile(@NonNull File dir, long id) {
+    return new File(dir, id + STATE_FILE_EXTENSION);
+  }
+
+  /**
+   * Stops download keeping downloaded data, so that it could be resumed later
+   */
+  void cancel() {
+    cancelled = true;
+  }
+
+  synchronized boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * @return true if download is over because of an error, i.e. it wasn't cancelled
+   */
+  synchronized boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * @return file size, -1 if it's unknown yet or server didn't report it
+   */
+  synchronized long getTotal() {
+    return positions == null ? -1 : total;
+  }
+
+  /**
+   * Blocks until data at given offset is downloaded, download is over or timeout expires.
+   * Used to read the file while it's being downloaded, see StreamingProxy
+   *
+   * @return number of contiguous bytes available at offset, -1 if download failed or was
+   *     cancelled before offset was reached
+   */
+  synchronized long awaitAvailable(long offset, long timeoutMs) throws InterruptedException {
+    long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+    long available = getAvailable(offset);
+    while (available == 0 && !finished) {
+      long left = deadline - SystemClock.elapsedRealtime();
+      if (left <= 0) {
+        return 0;
+      }
+      wait(left);
+      available = getAvailable(offset);
+    }
+    if (available == 0 && finished && !complete) {
+      return -1;
+    }
+    return available;
+  }
+
+  // guarded by this
+  private long getAvailable(long offset) {
+    if (complete) {
+      return Math.max(0, target.length() - offset);
+    }
+    if (positions == null) {
+      return 0;
+    }
+    // parts are ordered and adjacent, so available data could span several completed parts
+    long position = offset;
+    for (int part = 0; part < positions.length; part++) {
+      if (starts[part] <= position && position < positions[part]) {
+        position = positions[part];
+        if (positions[part] < ends[part]) {
+          break;
+        }
+      }
+    }
+    return position - offset;
+  }
+
+  @Override
+  public void run() {
+    long startTime = SystemClock.elapsedRealtime();
+    try {
+      boolean resumed = loadState();
+      try {
+        download(resumed);
+      } catch (ResourceChangedException exception) {
+        Log.w(TAG, "Episode " + id + " changed on server, restarting download", exception);
+        discardState();
+        download(false);
+      }
+      if (cancelled) {
+        Log.i(TAG, "Download of " + id + " cancelled");
+        saveState();
+        return;
+      }
+      long size = target.length();
+      if (total >= 0 && size != total) {
+        throw new IOException("Downloaded " + size + " bytes instead of " + total);
+      }
+      if (stateFile.exists() && !stateFile.delete()) {
+        Log.e(TAG, "Failed to delete " + stateFile);
+      }
+      synchronized (this) {
+        complete = true;
+      }
+      long time = SystemClock.elapsedRealtime() - startTime;
+      Log.i(TAG, "Episode " + id + " downloaded" + (resumed ? " (resumed)" : "") + " in " + time
+          + "ms" + (time > 0 ? ", " + size / time + " kB/s" : ""));
+
+      ContentValues values = new ContentValues(4);
+      values.put(Provider.K_EDID, 0);
+      values.put(Provider.K_EDFIN, Provider.EDFIN_PROCESSING);
+      values.put(Provider.K_ESIZE, size);
+      values.put(Provider.K_EERROR, (String) null);
+      context.getContentResolver().update(
+          Provider.getUri(Provider.T_EPISODE, id), values, null, null);
+      BackgroundOperations.startHandleDownloads(context);
+    } catch (IOException exception) {
+      if (cancelled) {
+        Log.i(TAG, "Download of " + id + " cancelled", exception);
+        saveState();
+        return;
+      }
+      // downloaded data is kept, next attempt will resume from where this one stopped
+      Log.w(TAG, "Download of " + id + " failed", exception);
+      saveState();
+      synchronized (this) {
+        failed = true;
+      }
+      // count the attempt like DownloadManager failures are counted, so that retry is delayed
+      ContentValues values = new ContentValues(5);
+      values.put(Provider.K_EDID, 0);
+      values.put(Provider.K_EDFIN, Provider.EDFIN_ERROR);
+      values.put(Provider.K_EERROR, "Download failed: " + exception.getMessage());
+      values.put(Provider.K_EDATT, getAttempts() + 1);
+      values.put(Provider.K_EDTSTAMP, new Date().getTime());
+      context.getContentResolver().update(
+          Provider.getUri(Provider.T_EPISODE, id), values, null, null);
+    } finally {
+      synchronized (this) {
+        finished = true;
+        notifyAll();
+      }
+      listener.onFinished(this);
+    }
+  }
+
+  /**
+   * @return number of previous download attempts of the episode
+   */
+  private int getAttempts() {
+    Cursor cursor = context.getContentResolver().query(
+        Provider.getUri(Provider.T_EPISODE, id), new String[]{Provider.K_EDATT}, null, null, null);
+    if (cursor == null) {
+      Log.e(TAG, "Failed to query download attempts of " + id);
+      return 0;
+    }
+    try {
+      return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private void download(boolean resume) throws IOException {
+    aborted = false;
+    HttpURLConnection first = null;
+    if (!resume) {
+      first = start();
+    }
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      int firstPart = -1;
+      for (int part = 0; part < positions.length; part++) {
+        if (positions[part] >= ends[part]) {
+          continue;
+        }
+        if (firstPart == -1) {
+          firstPart = part; // the first part is loaded from the current thread
+          continue;
+        }
+        final int finalPart = part;
+        futures.add(partsExecutor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            loadPart(finalPart, null);
+            return null;
+          }
+        }));
+      }
+      boolean success = false;
+      try {
+        if (firstPart != -1) {
+          HttpURLConnection connection = first;
+          first = null; // loadPart is in charge of closing it
+          loadPart(firstPart, connection);
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+        success = true;
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted", exception);
+      } catch (ExecutionException exception) {
+        if (exception.getCause() instanceof IOException) {
+          throw (IOException) exception.getCause();
+        }
+        throw new IOException(exception.getCause());
+      } finally {
+        if (!success) {
+          // wait for other parts to stop, so that they don't write to file after this method exits
+          aborted = true;
+          for (Future<?> future : futures) {
+            try {
+              future.get();
+            } catch (InterruptedException ignored) {
+              Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+              // only the first error is reported
+            }
+          }
+        }
+      }
+    } finally {
+      if (first != null) {
+        first.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Opens the first connection and splits file into parts based on server response
+   *
+   * @return connection which is positioned at the beginning of the first part
+   */
+  @NonNull
+  private HttpURLConnection start() throws IOException {
+    HttpURLConnection connection = open(0, -1, null);
+    try {
+      int code = connection.getResponseCode();
+      long size;
+      boolean rangesSupported;
+      if (code == HttpURLConnection.HTTP_PARTIAL) {
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(
+            String.valueOf(connection.getHeaderField("Content-Range")));
+        size = matcher.matches() && !"*".equals(matcher.group(3))
+            ? Long.parseLong(matcher.group(3)) : -1;
+        rangesSupported = true;
+      } else if (code == HttpURLConnection.HTTP_OK) {
+        String length = connection.getHeaderField("Content-Length");
+        size = length == null ? -1 : Long.parseLong(length);
+        rangesSupported = false;
+      } else {
+        throw new IOException("Unexpected server response " + code);
+      }
+      String etag = connection.getHeaderField("ETag");
+      String newValidator = etag == null ? connection.getHeaderField("Last-Modified") : etag;
+
+      int parts = rangesSupported && size >= PARALLEL_MIN_SIZE ? connections : 1;
+      synchronized (this) {
+        validator = rangesSupported ? newValidator : null;
+        total = size;
+        starts = new long[parts];
+        ends = new long[parts];
+        positions = new long[parts];
+        for (int part = 0; part < parts; part++) {
+          starts[part] = size < 0 ? 0 : size * part / parts;
+          ends[part] = size < 0 ? Long.MAX_VALUE : size * (part + 1) / parts;
+          positions[part] = starts[part];
+        }
+        notifyAll();
+      }
+      RandomAccessFile file = new RandomAccessFile(target, "rw");
+      try {
+        file.setLength(size < 0 ? 0 : size);
+      } finally {
+        file.close();
+      }
+      Log.i(TAG, "Downloading " + url + " (" + size + " bytes) in " + parts + " parts");
+      saveState();
+      return connection;
+    } catch (IOException | NumberFormatException exception) {
+      connection.disconnect();
+      throw exception instanceof IOException
+          ? (IOException) exception : new IOException(exception);
+    }
+  }
+
+  /**
+   * @param connection connection positioned at the part beginning or null to open a new one
+   */
+  private void loadPart(int part, @Nullable HttpURLConnection connection) throws IOException {
+    long position;
+    long end;
+    String partValidator;
+    synchronized (this) {
+      position = positions[part];
+      end = ends[part];
+      partValidator = validator;
+    }
+    if (connection == null) {
+      if (partValidator == null) {
+        // without validator there is no way to check if the data on server is still the same
+        throw new ResourceChangedException("No validator to resume download");
+      }
+      connection = open(position, end == Long.MAX_VALUE ? -1 : end, partValidator);
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+        int code = connection.getResponseCode();
+        connection.disconnect();
+        if (code == HttpURLConnection.HTTP_OK) {
+          throw new ResourceChangedException("Server responded with full content");
+        }
+        throw new IOException("Unexpected server response " + code);
+      }
+    }
+
+    InputStream input = null;
+    RandomAccessFile output = null;
+    try {
+      input = connection.getInputStream();
+      output = new RandomAccessFile(target, "rw");
+      output.seek(position);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (position < end && !cancelled && !aborted) {
+        int read = input.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+        if (read < 0) {
+          if (end == Long.MAX_VALUE) {
+            synchronized (this) {
+              total = position;
+              ends[part] = position;
+              notifyAll();
+            }
+            break;
+          }
+          throw new IOException("Connection closed at " + position + " of part ending at " + end);
+        }
+        output.write(buffer, 0, read);
+        position += read;
+        onProgress(part, position);
+      }
+    } finally {
+      if (output != null) {
+        try {
+          output.close();
+        } catch (IOException exception) {
+          Log.wtf(TAG, "Failed to close stream", exception);
+        }
+      }
+      if (input != null) {
+        try {
+          input.close();
+        } catch (IOException exception) {
+          Log.wtf(TAG, "Failed to close stream", exception);
+        }
+      }
+      connection.disconnect();
+    }
+  }
+
+  private void onProgress(int part, long position) {
+    int progress = -1;
+    long size;
+    boolean saveNeeded = false;
+    synchronized (this) {
+      positions[part] = position;
+      notifyAll();
+      size = total;
+      if (size > 0) {
+        long done = 0;
+        for (int i = 0; i < positions.length; i++) {
+          done += positions[i] - starts[i];
+        }
+        progress = (int) (99 * done / size);
+        if (progress == lastProgress) {
+          progress = -1;
+        } else {
+          lastProgress = progress;
+        }
+      }
+      long now = SystemClock.elapsedRealtime();
+      if (now - lastStateSave > STATE_SAVE_INTERVAL_MS) {
+        lastStateSave = now;
+        saveNeeded = true;
+      }
+    }
+    if (saveNeeded) {
+      saveState();
+    }
+    if (progress != -1) {
+      ContentValues values = new ContentValues(2);
+      values.put(Provider.K_EDFIN, progress);
+      values.put(Provider.K_ESIZE, size);
+      context.getContentResolver().update(
+          Provider.getUri(Provider.T_EPISODE, id), values, null, null);
+    }
+  }
+
+  @NonNull
+  private HttpURLConnection open(long from, long to, @Nullable String ifRange) throws IOException {
+    URL current = url;
+    for (int redirect = 0; redirect < MAX_REDIRECTS; redirect++) {
+      HttpURLConnection connection = (HttpURLConnection) current.openConnection();
+      connection.setConnectTimeout(TIMEOUT_MS);
+      connection.setReadTimeout(TIMEOUT_MS);
+      connection.setInstanceFollowRedirects(true);
+      // compressed responses would break byte ranges
+      connection.setRequestProperty("Accept-Encoding", "identity");
+      connection.setRequestProperty("Range", "bytes=" + from + "-" + (to < 0 ? "" : to - 1));
+      if (ifRange != null) {
+        connection.setRequestProperty("If-Range", ifRange);
+      }
+      int code = connection.getResponseCode();
+      // HttpURLConnection doesn't follow redirects between http and https
+      if (code == HttpURLConnection.HTTP_MOVED_PERM || code == HttpURLConnection.HTTP_MOVED_TEMP
+          || code == HttpURLConnection.HTTP_SEE_OTHER || code == HTTP_TEMPORARY_REDIRECT
+          || code == HTTP_PERMANENT_REDIRECT) {
+        String location = connection.getHeaderField("Location");
+        connection.disconnect();
+        if (location == null) {
+          throw new IOException("Redirect without location from " + current);
+        }
+        current = new URL(current, location);
+        Log.d(TAG, "Following redirect to " + current);
+        continue;
+      }
+      return connection;
+    }
+    throw new IOException("Too many redirects from " + url);
+  }
+
+  /**
+   * @return true if previous download state was restored
+   */
+  private boolean loadState() {
+    if (!stateFile.exists()) {
+      return false;
+    }
+    if (target.exists()) {
+      BufferedReader reader = null;
+      try {
+        reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(stateFile), STATE_CHARSET));
+        if (url.toString().equals(reader.readLine())) {
+          String savedValidator = reader.readLine();
+          long savedTotal = Long.parseLong(reader.readLine());
+          int parts = Integer.parseInt(reader.readLine());
+          long[] savedStarts = new long[parts];
+          long[] savedEnds = new long[parts];
+          long[] savedPositions = new long[parts];
+          for (int part = 0; part < parts; part++) {
+            String[] fields = reader.readLine().split(" ");
+            savedStarts[part] = Long.parseLong(fields[0]);
+            savedEnds[part] = Long.parseLong(fields[1]);
+            savedPositions[part] = Long.parseLong(fields[2]);
+          }
+          synchronized (this) {
+            validator = savedValidator.isEmpty() ? null : savedValidator;
+            total = savedTotal;
+            starts = savedStarts;
+            ends = savedEnds;
+            positions = savedPositions;
+          }
+          Log.i(TAG, "Resuming download of " + id);
+          return true;
+        }
+      } catch (IOException | RuntimeException exception) {
+        Log.w(TAG, "Failed to read " + stateFile, exception);
+      } finally {
+        if (reader != null) {
+          try {
+            reader.close();
+          } catch (IOException exception) {
+            Log.wtf(TAG, "Failed to close stream", exception);
+          }
+        }
+      }
+    }
+    discardState();
+    return false;
+  }
+
+  private void discardState() {
+    if (stateFile.exists() && !stateFile.delete()) {
+      Log.e(TAG, "Failed to delete " + stateFile);
+    }
+    if (target.exists() && !target.delete()) {
+      Log.e(TAG, "Failed to delete " + target);
+    }
+  }
+
+  private void saveState() {
+    StringBuilder builder = new StringBuilder();
+    synchronized (this) {
+      // target is missing if episode was deleted while being downloaded
+      if (positions == null || !target.exists()) {
+        return;
+      }
+      builder.append(url).append('\n')
+             .append(validator == null ? "" : validator).append('\n')
+             .append(total).append('\n')
+             .append(positions.length).append('\n');
+      for (int part = 0; part < positions.length; part++) {
+        builder.append(starts[part]).append(' ')
+               .append(ends[part]).append(' ')
+               .append(positions[part]).append('\n');
+      }
+    }
+    // write to temporary file first, so that interrupted write won't corrupt state
+    File temp = new File(stateFile.getPath() + ".tmp");
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(temp), STATE_CHARSET);
+      writer.write(builder.toString());
+      writer.close();
+      writer = null;
+      if (!temp.renameTo(stateFile)) {
+        Log.e(TAG, "Failed to rename " + temp + " to " + stateFile);
+      }
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to save download state of " + id, exception);
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException exception) {
+          Log.wtf(TAG, "Failed to close stream", exception);
+        }
+      }
+    }
+  }
+
+  private static class ResourceChangedException extends IOException {
+    ResourceChangedException(String message) {
+      super(message);
+    }
+  }
+}
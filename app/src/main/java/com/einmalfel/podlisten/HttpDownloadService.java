@@ -0,0 +1,192 @@
+package com.einmalfel.podlisten;
+
+import android.app.Service;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Built-in alternative to system DownloadManager, see HttpDownload.
+ * While episode is being downloaded by this service, its K_EDID is set to -(episode id), so that
+ * it never clashes with DownloadManager ids.
+ * Service isn't sticky: if process is killed, DownloadReceiver heartbeat finds episodes with
+ * negative K_EDID which aren't running anymore and resets them, so they are resumed later.
+ */
+public class HttpDownloadService extends Service implements HttpDownload.Listener {
+  private static final String TAG = "HDS";
+  private static final String ACTION_DOWNLOAD = "com.einmalfel.podlisten.HTTP_DOWNLOAD";
+  private static final String ACTION_CANCEL = "com.einmalfel.podlisten.HTTP_CANCEL";
+  private static final String EXTRA_URL = "com.einmalfel.podlisten.URL";
+  private static final String EXTRA_ID = "com.einmalfel.podlisten.ID";
+  private static final String EXTRA_DIR = "com.einmalfel.podlisten.DIR";
+  private static final String EXTRA_IDS = "com.einmalfel.podlisten.IDS";
+
+  // ids of episodes being downloaded. Accessed from DownloadReceiver, so it's static
+  private static final Set<Long> running = Collections.synchronizedSet(new HashSet<Long>());
+  // static as well, so that StreamingProxy could read files which are being downloaded
+  private static final Map<Long, HttpDownload> downloads =
+      Collections.synchronizedMap(new HashMap<Long, HttpDownload>());
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private ExecutorService executor;
+
+  static long getDownloadId(long episodeId) {
+    return -episodeId;
+  }
+
+  static boolean isBuiltInDownload(long downloadId) {
+    return downloadId < 0;
+  }
+
+  static long getEpisodeId(long downloadId) {
+    return -downloadId;
+  }
+
+  static boolean isRunning(long episodeId) {
+    return running.contains(episodeId);
+  }
+
+  /**
+   * @return download of given episode if it's being downloaded by this service, null otherwise
+   */
+  @Nullable
+  static HttpDownload getDownload(long episodeId) {
+    return downloads.get(episodeId);
+  }
+
+  static int getRunningCount() {
+    return running.size();
+  }
+
+  /**
+   * Marks episode as being downloaded and starts the download. Episode is registered as running
+   * before its K_EDID is written, so that the heartbeat never resets a download which is starting.
+   */
+  static void startDownload(@NonNull Context context, long id, @NonNull String url,
+                            @NonNull File dir) {
+    running.add(id);
+    ContentValues cv = new ContentValues(2);
+    cv.put(Provider.K_EDID, getDownloadId(id));
+    cv.put(Provider.K_EDFIN, 0);
+    context.getContentResolver().update(Provider.getUri(Provider.T_EPISODE, id), cv, null, null);
+    Intent intent = new Intent(context, HttpDownloadService.class);
+    intent.setAction(ACTION_DOWNLOAD);
+    intent.putExtra(EXTRA_ID, id);
+    intent.putExtra(EXTRA_URL, url);
+    intent.putExtra(EXTRA_DIR, dir.getAbsolutePath());
+    context.startService(intent);
+  }
+
+  /**
+   * Stops downloads keeping downloaded data, so that they could be resumed later
+   */
+  static void cancelDownloads(@NonNull Context context, @NonNull long[] ids) {
+    for (long id : ids) {
+      running.remove(id);
+    }
+    Intent intent = new Intent(context, HttpDownloadService.class);
+    intent.setAction(ACTION_CANCEL);
+    intent.putExtra(EXTRA_IDS, ids);
+    context.startService(intent);
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    if (intent == null) {
+      return START_NOT_STICKY;
+    }
+    switch (intent.getAction()) {
+      case ACTION_DOWNLOAD:
+        long id = intent.getLongExtra(EXTRA_ID, 0);
+        if (downloads.containsKey(id)) {
+          Log.w(TAG, "Episode " + id + " is already being downloaded");
+          break;
+        }
+        try {
+          HttpDownload download = new HttpDownload(
+              getApplicationContext(), id, new URL(intent.getStringExtra(EXTRA_URL)),
+              new File(intent.getStringExtra(EXTRA_DIR)),
+              Preferences.getInstance().getDownloadConnections().toInt(), executor, this);
+          downloads.put(id, download);
+          executor.execute(download);
+        } catch (MalformedURLException exception) {
+          Log.e(TAG, "Malformed url of episode " + id, exception);
+          running.remove(id);
+        }
+        break;
+      case ACTION_CANCEL:
+        for (long cancelId : intent.getLongArrayExtra(EXTRA_IDS)) {
+          HttpDownload download = downloads.get(cancelId);
+          if (download != null) {
+            download.cancel();
+          }
+        }
+        break;
+      default:
+        Log.wtf(TAG, "Unexpected intent action: " + intent.getAction());
+    }
+    stopIfIdle();
+    return START_NOT_STICKY;
+  }
+
+  @Override
+  public void onFinished(@NonNull final HttpDownload download) {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (downloads.get(download.id) == download) {
+          downloads.remove(download.id);
+          running.remove(download.id);
+        }
+        // after failure requeue without force, as for DownloadManager, so that retry is delayed
+        sendBroadcast(DownloadReceiver.getUpdateQueueIntent(HttpDownloadService.this,
+                                                            !download.isFailed()));
+        stopIfIdle();
+      }
+    });
+  }
+
+  private void stopIfIdle() {
+    if (downloads.isEmpty()) {
+      stopSelf();
+    }
+  }
+
+  @Override
+  public void onDestroy() {
+    synchronized (downloads) {
+      for (HttpDownload download : downloads.values()) {
+        download.cancel();
+      }
+    }
+    executor.shutdown();
+    super.onDestroy();
+  }
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return null;
+  }
+}
@@ -5,35 +5,73 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Point;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.LruCache;
 import android.view.WindowManager;
 
 import com.einmalfel.podlisten.support.UnitConverter;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
- * This class is in charge of downloading, storing and memory-caching images
+ * This class is in charge of downloading, storing and memory-caching images.
+ * Images are content-addressed: each distinct image is stored once as lossy WebP named after the
+ * hash of its pixels, and refs file in images dir maps episode and podcast ids to these hashes.
+ * This way episodes which share their feed image don't waste storage.
+ * Refs file is shared by main and sync processes, so it's always modified under file lock.
+ * To keep image lookups (performed on every list element bind) free of filesystem I/O, refs are
+ * held in memory index, which is checked against refs file at most once per second.
  */
 public class ImageManager {
   private static final String TAG = "IMG";
   private static final int WIDTH_DP = 70;
   private static final int PAGES_TO_CACHE = 10;
+  private static final int WEBP_QUALITY = 85;
+  private static final String REFS_FILE_NAME = "refs";
+  // refs file is replaced on each write, so writers lock this one instead
+  private static final String REFS_LOCK_FILE_NAME = "refs.lock";
+  private static final String IMAGE_EXTENSION = ".webp";
+  private static final String TEMP_EXTENSION = ".tmp";
+  private static final String LEGACY_IMAGE_EXTENSION = ".png"; // used by PodListen <= 1.3.6
+  private static final Charset REFS_CHARSET = Charset.forName("UTF-8");
+  private static final String LEGACY = ""; // index value for images stored in legacy format
+  private static final long INDEX_CHECK_INTERVAL_MS = 1000;
   public static final String FAILED_TO_CLOSE_STREAM = "Failed to close stream";
   private final int widthPx;
   private static ImageManager instance;
 
-  private final LruCache<Long, Bitmap> memoryCache;
+  // keyed by image hash (or by legacy file name), so that shared images are decoded only once
+  private final LruCache<String, Bitmap> memoryCache;
+
+  // id -> image hash or LEGACY. Mirrors refs file and legacy images of indexDir
+  private final LongSparseArray<String> index = new LongSparseArray<>();
+  private File indexDir; // null if there is no readable storage
+  private long refsModified;
+  private long refsLength;
+  private long indexCheckTime;
 
   private ImageManager(@NonNull Application context) {
     widthPx = UnitConverter.getInstance().dpToPx(WIDTH_DP);
@@ -60,23 +98,63 @@ public class ImageManager {
 
   @Nullable
   public Bitmap getImage(long id) {
-    Bitmap result = memoryCache.get(id);
+    File dir;
+    String hash;
+    synchronized (this) {
+      dir = getIndexedDir();
+      hash = index.get(id);
+    }
+    if (dir == null || hash == null) {
+      return null;
+    }
+    File file = LEGACY.equals(hash) ? getLegacyFile(dir, id) : getImageFile(dir, hash);
+    String key = file.getName();
+    Bitmap result = memoryCache.get(key);
     if (result == null) {
-      result = loadFromDisk(id);
+      result = loadFromDisk(id, file);
       if (result != null) {
-        memoryCache.put(id, result);
+        memoryCache.put(key, result);
       }
     }
     return result;
   }
 
-  public void deleteImage(long id) {
-    File file = getImageFile(id, true);
-    if (file != null && file.exists()) {
-      if (!file.delete()) {
-        Log.e(TAG, "Deletion of " + file.getAbsolutePath() + " failed");
+  public synchronized void deleteImage(long id) {
+    File dir = getImagesDir(true);
+    if (dir == null) {
+      return;
+    }
+    File legacyFile = getLegacyFile(dir, id);
+    if (legacyFile.exists() && !legacyFile.delete()) {
+      Log.e(TAG, "Deletion of " + legacyFile.getAbsolutePath() + " failed");
+    }
+    // don't trust the index here: reference could have been just added by sync process
+    try {
+      updateRef(dir, id, null, null);
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to remove reference to image " + id, exception);
+    }
+  }
+
+  /**
+   * Same as deleteImage, but refs file is rewritten only once for all ids
+   */
+  public synchronized void deleteImages(@NonNull long[] ids) {
+    File dir = getImagesDir(true);
+    if (dir == null || ids.length == 0) {
+      return;
+    }
+    for (long id : ids) {
+      File legacyFile = getLegacyFile(dir, id);
+      if (legacyFile.exists() && !legacyFile.delete()) {
+        Log.e(TAG, "Deletion of " + legacyFile.getAbsolutePath() + " failed");
       }
     }
+    try {
+      removeRefs(dir, ids);
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to remove references to " + ids.length + " images", exception);
+    }
   }
 
   // based on snippet from http://developer.android.com/training/displaying-bitmaps/load-bitmap.html
@@ -119,66 +197,433 @@ public class ImageManager {
         urlConnection.disconnect();
       }
     }
+    Log.d(TAG, url.toString() + " downloaded as image " + id);
+    store(id, bitmap);
+  }
+
+  /**
+   * Scales bitmap to list element width and stores it as image of given id. Recycles bitmap
+   */
+  @VisibleForTesting
+  void store(long id, @NonNull Bitmap bitmap) {
     Bitmap scaled = Bitmap.createScaledBitmap(
         bitmap, widthPx, bitmap.getHeight() * widthPx / bitmap.getWidth(), true);
 
-    File file = getImageFile(id, false);
-    if (file == null) {
-      Log.e(TAG, "Image " + id + " download failed. No writable storage");
-      return;
-    }
-    FileOutputStream stream = null;
-    FileLock lock = null;
     try {
-      stream = new FileOutputStream(file);
-      lock = stream.getChannel().lock();
-      scaled.compress(Bitmap.CompressFormat.PNG, 100, stream);
-      Log.d(TAG, url.toString() + " written to " + file.getAbsolutePath());
+      File dir = getImagesDir(true);
+      if (dir == null) {
+        Log.e(TAG, "Failed to store image " + id + ". No writable storage");
+        return;
+      }
+      updateRef(dir, id, hashPixels(scaled), scaled);
     } catch (IOException exception) {
-      Log.e(TAG, "Failed to read image " + id + "from flash", exception);
+      Log.e(TAG, "Failed to write image " + id + " to flash", exception);
     } finally {
       bitmap.recycle();
       scaled.recycle();
-      if (lock != null) {
+    }
+  }
+
+  /**
+   * Doesn't allocate or touch flash in most cases, so it's suitable for list element binding.
+   *
+   * @return hash of image stored for given id (LEGACY for legacy image) or null if there is none
+   */
+  @Nullable
+  public synchronized String getImageHash(long id) {
+    return getIndexedDir() == null ? null : index.get(id);
+  }
+
+  public synchronized boolean isDownloaded(long id) {
+    return getIndexedDir() != null && index.get(id) != null;
+  }
+
+  /**
+   * Converts images stored by previous versions (lossless PNG, one file per id) to the
+   * content-addressed WebP images. Decodes every legacy image, so call it from background thread.
+   *
+   * @return number of bytes reclaimed by migration
+   */
+  public long migrateLegacyImages() {
+    File dir = getImagesDir(true);
+    if (dir == null) {
+      return 0;
+    }
+    File[] legacyFiles = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(LEGACY_IMAGE_EXTENSION);
+      }
+    });
+    if (legacyFiles == null || legacyFiles.length == 0) {
+      return 0;
+    }
+
+    long usageBefore = getDiskUsage(dir);
+    int migrated = 0;
+    for (File legacyFile : legacyFiles) {
+      String name = legacyFile.getName();
+      long id;
+      try {
+        id = Long.parseLong(name.substring(0, name.length() - LEGACY_IMAGE_EXTENSION.length()));
+      } catch (NumberFormatException ignored) {
+        Log.w(TAG, "Skipping migration of unexpected file " + legacyFile);
+        continue;
+      }
+      Bitmap bitmap = loadFromDisk(id, legacyFile);
+      if (bitmap == null) {
+        Log.w(TAG, "Failed to decode " + legacyFile + ", dropping it");
+      } else {
         try {
-          lock.release();
+          updateRef(dir, id, hashPixels(bitmap), bitmap);
+          migrated++;
         } catch (IOException exception) {
-          Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
+          Log.e(TAG, "Failed to migrate " + legacyFile + ", will retry next time", exception);
+          continue;
+        } finally {
+          bitmap.recycle();
         }
       }
-      if (stream != null) {
-        try {
-          stream.close();
-        } catch (IOException exception) {
-          Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
+      if (!legacyFile.delete()) {
+        Log.e(TAG, "Failed to delete migrated image " + legacyFile);
+      }
+      synchronized (this) {
+        if (LEGACY.equals(index.get(id))) {
+          index.remove(id);
         }
       }
     }
-  }
-
-  public boolean isDownloaded(long id) {
-    File file = getImageFile(id, false);
-    return file != null && file.exists();
+    memoryCache.evictAll();
+    long reclaimed = usageBefore - getDiskUsage(dir);
+    Log.i(TAG, "Migrated " + migrated + " of " + legacyFiles.length + " legacy images. "
+        + reclaimed + " bytes reclaimed (" + usageBefore + " bytes before migration)");
+    return reclaimed;
   }
 
   @Nullable
-  private File getImageFile(long id, boolean write) {
+  private File getImagesDir(boolean write) {
     Storage storage = Preferences.getInstance().getStorage();
     if (storage == null) {
       return null;
     }
     boolean isAvailable = write ? storage.isAvailableRw() : storage.isAvailableRead();
-    return isAvailable ? new File(storage.getImagesDir(), id + ".png") : null;
+    return isAvailable ? storage.getImagesDir() : null;
   }
 
+  @NonNull
+  private static File getImageFile(@NonNull File dir, @NonNull String hash) {
+    return new File(dir, hash + IMAGE_EXTENSION);
+  }
+
+  @NonNull
+  private static File getLegacyFile(@NonNull File dir, long id) {
+    return new File(dir, id + LEGACY_IMAGE_EXTENSION);
+  }
+
+  private static long getDiskUsage(@NonNull File dir) {
+    long result = 0;
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        result += file.length();
+      }
+    }
+    return result;
+  }
+
+  @NonNull
+  private static String hashPixels(@NonNull Bitmap bitmap) {
+    ByteBuffer buffer = ByteBuffer.allocate(bitmap.getRowBytes() * bitmap.getHeight());
+    bitmap.copyPixelsToBuffer(buffer);
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException exception) {
+      throw new AssertionError("SHA-1 is guaranteed to be supported");
+    }
+    StringBuilder builder = new StringBuilder();
+    for (byte b : digest.digest(buffer.array())) {
+      builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+             .append(Character.forDigit(b & 0xf, 16));
+    }
+    return builder.toString();
+  }
 
+  /**
+   * Returns images dir of current storage, re-reading index if storage was switched or refs file
+   * was modified by another process. This is checked at most once per INDEX_CHECK_INTERVAL_MS.
+   *
+   * @return null if there is no readable storage
+   */
   @Nullable
-  private Bitmap loadFromDisk(long id) {
-    if (!isDownloaded(id)) {
+  private synchronized File getIndexedDir() {
+    long now = SystemClock.elapsedRealtime();
+    if (indexCheckTime != 0 && now - indexCheckTime < INDEX_CHECK_INTERVAL_MS) {
+      return indexDir;
+    }
+    indexCheckTime = now;
+    File dir = getImagesDir(false);
+    if (dir == null) {
+      index.clear();
+      indexDir = null;
+    } else {
+      File file = new File(dir, REFS_FILE_NAME);
+      if (!dir.equals(indexDir) || file.lastModified() != refsModified
+          || file.length() != refsLength) {
+        loadIndex(dir);
+      }
+    }
+    return indexDir;
+  }
+
+  private void loadIndex(@NonNull File dir) {
+    LongSparseArray<String> refs = new LongSparseArray<>();
+    File file = new File(dir, REFS_FILE_NAME);
+    // refs file is replaced atomically, so it's read without lock. Stamp is taken before reading:
+    // if file is replaced in between, index will be reloaded on next check
+    long modified = file.lastModified();
+    long length = file.length();
+    try {
+      parseRefs(readRefs(file), refs);
+      refsModified = modified;
+      refsLength = length;
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to read " + file, exception);
+    }
+    setIndex(dir, refs);
+  }
+
+  /**
+   * Replaces index with given refs of dir and legacy images stored there
+   */
+  private void setIndex(@NonNull File dir, @NonNull LongSparseArray<String> refs) {
+    index.clear();
+    for (int i = 0; i < refs.size(); i++) {
+      index.put(refs.keyAt(i), refs.valueAt(i));
+    }
+    String[] names = dir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.endsWith(LEGACY_IMAGE_EXTENSION)) {
+          try {
+            long id = Long.parseLong(
+                name.substring(0, name.length() - LEGACY_IMAGE_EXTENSION.length()));
+            if (index.get(id) == null) {
+              index.put(id, LEGACY);
+            }
+          } catch (NumberFormatException ignored) {
+            Log.w(TAG, "Unexpected file in images dir: " + name);
+          }
+        }
+      }
+    }
+    indexDir = dir;
+    Log.d(TAG, "Loaded index of " + index.size() + " images from " + dir);
+  }
+
+  private interface RefsModification {
+    /**
+     * Modifies refs in-place. Called under exclusive lock of refs file.
+     *
+     * @return hashes previously referenced by modified ids, they are deleted unless still in use
+     */
+    @NonNull
+    Set<String> modify(@NonNull LongSparseArray<String> refs) throws IOException;
+  }
+
+  /**
+   * Makes id reference image with given hash, or removes the reference if hash is null.
+   * Stores the image if it's not stored yet. Deletes previously referenced image if it's not
+   * referenced anymore.
+   */
+  private synchronized void updateRef(@NonNull File dir, final long id,
+                                      @Nullable final String hash, @Nullable final Bitmap image)
+      throws IOException {
+    final File imageFile = hash == null ? null : getImageFile(dir, hash);
+    modifyRefs(dir, new RefsModification() {
+      @NonNull
+      @Override
+      public Set<String> modify(@NonNull LongSparseArray<String> refs) throws IOException {
+        if (imageFile != null && image != null && !imageFile.exists()) {
+          writeImage(image, imageFile);
+        }
+        String previous = refs.get(id);
+        if (hash == null) {
+          refs.remove(id);
+        } else {
+          refs.put(id, hash);
+        }
+        Set<String> result = new HashSet<>();
+        if (previous != null && !previous.equals(hash)) {
+          result.add(previous);
+        }
+        return result;
+      }
+    });
+  }
+
+  /** batch version of updateRef(dir, id, null, null) */
+  private synchronized void removeRefs(@NonNull File dir, @NonNull final long[] ids)
+      throws IOException {
+    modifyRefs(dir, new RefsModification() {
+      @NonNull
+      @Override
+      public Set<String> modify(@NonNull LongSparseArray<String> refs) {
+        Set<String> result = new HashSet<>();
+        for (long id : ids) {
+          String hash = refs.get(id);
+          if (hash != null) {
+            result.add(hash);
+            refs.remove(id);
+          }
+        }
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Reads refs file, applies modification to it, rewrites the file if it has changed and deletes
+   * orphaned images. Then rebuilds index from resulting refs, so that references added by other
+   * process since the last index load are picked up as well. All of this is done under exclusive
+   * lock of refs lock file.
+   */
+  private void modifyRefs(@NonNull File dir, @NonNull RefsModification modification)
+      throws IOException {
+    File file = new File(dir, REFS_FILE_NAME);
+    RandomAccessFile lockFile = new RandomAccessFile(new File(dir, REFS_LOCK_FILE_NAME), "rw");
+    FileLock lock = null;
+    try {
+      lock = lockFile.getChannel().lock();
+      LongSparseArray<String> refs = new LongSparseArray<>();
+      parseRefs(readRefs(file), refs);
+      int sizeBefore = refs.size();
+
+      Set<String> previous = modification.modify(refs);
+
+      if (!previous.isEmpty() || refs.size() != sizeBefore) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < refs.size(); i++) {
+          builder.append(refs.keyAt(i)).append(' ').append(refs.valueAt(i)).append('\n');
+        }
+        writeRefs(file, builder.toString());
+      }
+
+      for (String hash : previous) {
+        if (!containsHash(refs, hash)) {
+          File orphan = getImageFile(dir, hash);
+          if (orphan.exists() && !orphan.delete()) {
+            Log.e(TAG, "Deletion of " + orphan.getAbsolutePath() + " failed");
+          }
+          memoryCache.remove(orphan.getName());
+        }
+      }
+
+      setIndex(dir, refs);
+      refsModified = file.lastModified();
+      refsLength = file.length();
+    } finally {
+      releaseAndClose(lock, lockFile);
+    }
+  }
+
+  /**
+   * @return content of refs file, empty if there is no refs file yet
+   */
+  @NonNull
+  private static String readRefs(@NonNull File file) throws IOException {
+    FileInputStream stream;
+    try {
+      stream = new FileInputStream(file);
+    } catch (FileNotFoundException ignored) {
+      return "";
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(stream, REFS_CHARSET));
+      StringBuilder content = new StringBuilder();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        content.append(line).append('\n');
+      }
+      return content.toString();
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
+      }
+    }
+  }
+
+  // write to temporary file first, so that killed process won't leave refs truncated or lost
+  private static void writeRefs(@NonNull File target, @NonNull String content)
+      throws IOException {
+    File temp = new File(target.getPath() + TEMP_EXTENSION);
+    FileOutputStream stream = new FileOutputStream(temp);
+    try {
+      stream.write(content.getBytes(REFS_CHARSET));
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
+      }
+    }
+    if (!temp.renameTo(target)) {
+      throw new IOException("Failed to rename " + temp + " to " + target);
+    }
+  }
+
+  private static boolean containsHash(@NonNull LongSparseArray<String> refs,
+                                      @NonNull String hash) {
+    for (int i = 0; i < refs.size(); i++) {
+      if (hash.equals(refs.valueAt(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void parseRefs(@NonNull String content,
+                                @NonNull LongSparseArray<String> target) {
+    for (String line : content.split("\n")) {
+      int separator = line.indexOf(' ');
+      if (separator > 0) {
+        try {
+          target.put(Long.parseLong(line.substring(0, separator)), line.substring(separator + 1));
+        } catch (NumberFormatException ignored) {
+          Log.e(TAG, "Malformed image reference: " + line);
+        }
+      }
+    }
+  }
+
+  // write to temporary file first, so that interrupted write won't leave corrupted image behind
+  private void writeImage(@NonNull Bitmap image, @NonNull File target) throws IOException {
+    File temp = new File(target.getPath() + TEMP_EXTENSION);
+    FileOutputStream stream = new FileOutputStream(temp);
+    try {
+      if (!image.compress(Bitmap.CompressFormat.WEBP, WEBP_QUALITY, stream)) {
+        throw new IOException("Failed to encode " + target);
+      }
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
+      }
+    }
+    if (!temp.renameTo(target)) {
+      throw new IOException("Failed to rename " + temp + " to " + target);
+    }
+  }
+
+  @Nullable
+  private Bitmap loadFromDisk(long id, @NonNull File file) {
+    if (!file.exists()) {
       return null;
     }
     Log.d(TAG, "Loading " + id + " from sdcard. Cache size before " + getCacheSize());
-    File file = getImageFile(id, false);
     FileInputStream stream = null;
     FileLock lock = null;
     try {
@@ -191,23 +636,34 @@ public class ImageManager {
       Log.e(TAG, "Failed to read image " + id + "from flash", exception);
       return null;
     } finally {
-      if (lock != null) {
-        try {
-          lock.release();
-        } catch (IOException exception) {
-          Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
-        }
+      releaseAndClose(lock, stream);
+    }
+  }
+
+  private static void releaseAndClose(@Nullable FileLock lock, @Nullable Closeable closeable) {
+    if (lock != null) {
+      try {
+        lock.release();
+      } catch (IOException exception) {
+        Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
       }
-      if (stream != null) {
-        try {
-          stream.close();
-        } catch (IOException exception) {
-          Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
-        }
+    }
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, FAILED_TO_CLOSE_STREAM, exception);
       }
     }
   }
 
+  /**
+   * @return how many images memory cache holds
+   */
+  int getMemoryCacheCapacity() {
+    return memoryCache.maxSize();
+  }
+
   private int getCacheSize() {
     int size = 0;
     for (Bitmap b : memoryCache.snapshot().values()) {
@@ -0,0 +1,130 @@
+package com.einmalfel.podlisten;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms ImageManager memory cache with images of list elements which are about to scroll into
+ * view, so that they aren't decoded on UI thread during bind.
+ * Number of prefetched elements grows with scroll speed, but prefetched and visible images together
+ * never exceed memory cache capacity, so prefetching can't evict images which are on screen.
+ */
+public class ImagePrefetcher extends RecyclerView.OnScrollListener {
+  interface ImageSource {
+    /**
+     * @return id of image to show at given adapter position, 0 if there is no such position
+     */
+    long getImageId(int position);
+
+    /**
+     * @return id of image to show if there is no image getImageId(position), 0 if none
+     */
+    long getFallbackImageId(int position);
+  }
+
+  private static final String TAG = "IPF";
+  private static final int MIN_AHEAD = 2; // [elements]
+  private static final int FRAMES_AHEAD = 30; // estimate scroll distance for half a second
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+          return new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              runnable.run();
+            }
+          }, "ImagePrefetcher");
+        }
+      });
+
+  private final ImageSource source;
+  // incremented on every prefetch request, so that outdated requests are dropped from the queue
+  private final AtomicInteger generation = new AtomicInteger();
+  private int lastFirst = RecyclerView.NO_POSITION;
+  private int lastLast = RecyclerView.NO_POSITION;
+  private int lastAhead = 0;
+
+  /**
+   * Creates prefetcher and attaches it to recyclerView, which should use LinearLayoutManager
+   */
+  public static void attach(@NonNull RecyclerView recyclerView, @NonNull ImageSource source) {
+    recyclerView.addOnScrollListener(new ImagePrefetcher(source));
+  }
+
+  private ImagePrefetcher(@NonNull ImageSource source) {
+    this.source = source;
+  }
+
+  @Override
+  public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+    if (dy == 0) {
+      return;
+    }
+    LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+    int first = layoutManager.findFirstVisibleItemPosition();
+    int last = layoutManager.findLastVisibleItemPosition();
+    if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+      return;
+    }
+    int visible = last - first + 1;
+
+    // average element height gives scroll speed in elements per frame
+    int elementHeight = Math.max(1, recyclerView.getHeight() / visible);
+    int ahead = MIN_AHEAD + Math.abs(dy) * FRAMES_AHEAD / elementHeight;
+    int budget = ImageManager.getInstance().getMemoryCacheCapacity() - visible;
+    ahead = Math.min(ahead, budget);
+    if (ahead <= 0) {
+      return;
+    }
+
+    // don't repeat request while the same elements are visible and speed didn't grow
+    if (first == lastFirst && last == lastLast && ahead <= lastAhead) {
+      return;
+    }
+    lastFirst = first;
+    lastLast = last;
+    lastAhead = ahead;
+
+    int count = recyclerView.getAdapter().getItemCount();
+    int from = dy > 0 ? last + 1 : Math.max(0, first - ahead);
+    int to = dy > 0 ? Math.min(count, last + 1 + ahead) : first;
+    if (from >= to) {
+      return;
+    }
+    final long[] ids = new long[to - from];
+    final long[] fallbackIds = new long[to - from];
+    // walk positions from visible ones outwards, nearest elements are needed first
+    for (int i = 0; i < ids.length; i++) {
+      int position = dy > 0 ? from + i : to - 1 - i;
+      ids[i] = source.getImageId(position);
+      fallbackIds[i] = source.getFallbackImageId(position);
+    }
+
+    final int requestGeneration = generation.incrementAndGet();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ImageManager imageManager = ImageManager.getInstance();
+        for (int i = 0; i < ids.length; i++) {
+          if (generation.get() != requestGeneration) {
+            Log.d(TAG, "Prefetch request superseded after " + i + " of " + ids.length);
+            return;
+          }
+          if ((ids[i] == 0 || imageManager.getImage(ids[i]) == null) && fallbackIds[i] != 0) {
+            imageManager.getImage(fallbackIds[i]);
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,278 @@
+package com.einmalfel.podlisten;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Frame index of VBR MP3 file: time and byte offset of the first frame of each INTERVAL_MS of
+ * audio. Without Xing TOC MediaPlayer seeks in VBR files assuming constant bitrate, which lands
+ * far from requested position in long episodes. With the index PlayerService opens the file right
+ * at the frame to be played instead of seeking.
+ * Index is built during post-download processing and stored next to media file. CBR files don't
+ * get an index, as MediaPlayer seeks them precisely.
+ */
+class Mp3SeekTable {
+  private static final String TAG = "MST";
+  private static final String FILE_EXTENSION = ".seek";
+  private static final int MAGIC = 0x504C5354; // "PLST"
+  private static final int VERSION = 1;
+  private static final int INTERVAL_MS = 1000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_FRAME_SIZE = 4096; // largest possible frame is 2881 bytes
+  private static final int RESYNC_LIMIT = 64 * 1024; // give up if there is no frame sync this long
+
+  static class Position {
+    final int time; // [ms]
+    final long offset; // [bytes]
+
+    Position(int time, long offset) {
+      this.time = time;
+      this.offset = offset;
+    }
+  }
+
+  private final int[] times;
+  private final long[] offsets;
+  private final int duration;
+
+  private Mp3SeekTable(@NonNull int[] times, @NonNull long[] offsets, int duration) {
+    this.times = times;
+    this.offsets = offsets;
+    this.duration = duration;
+  }
+
+  @NonNull
+  static File getFile(@NonNull File dir, long id) {
+    return new File(dir, id + FILE_EXTENSION);
+  }
+
+  /**
+   * @return precise duration in ms, counted frame by frame
+   */
+  int getDuration() {
+    return duration;
+  }
+
+  /**
+   * Scans MPEG frames of media file and saves index to tableFile if bitrate is variable. Stale
+   * table is removed otherwise.
+   *
+   * @return index or null if file isn't VBR MP3 or couldn't be read
+   */
+  @Nullable
+  static Mp3SeekTable build(@NonNull File media, @NonNull File tableFile) {
+    Mp3SeekTable result = null;
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(media, "r");
+      result = scan(file);
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to scan " + media, exception);
+    } finally {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException exception) {
+          Log.wtf(TAG, "Failed to close stream", exception);
+        }
+      }
+    }
+    if (result == null || !result.save(tableFile)) {
+      if (tableFile.exists() && !tableFile.delete()) {
+        Log.e(TAG, "Failed to delete " + tableFile);
+      }
+      return null;
+    }
+    Log.d(TAG, "Indexed " + media + ", " + result.times.length + " entries");
+    return result;
+  }
+
+  @Nullable
+  private static Mp3SeekTable scan(@NonNull RandomAccessFile file) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int length = DurationParser.read(file, 0, buffer);
+    if (AudioSniffer.sniff(buffer, length) != AudioSniffer.Container.MP3) {
+      return null;
+    }
+    long bufferStart = 0;
+    long position = DurationParser.getId3Size(buffer, length);
+    int[] times = new int[256];
+    long[] offsets = new long[256];
+    int count = 0;
+    long samples = 0;
+    int sampleRate = 0;
+    int firstBitrate = 0;
+    boolean vbr = false;
+    int skipped = 0;
+    while (skipped < RESYNC_LIMIT) {
+      if (position + MAX_FRAME_SIZE > bufferStart + length && length == buffer.length) {
+        bufferStart = position;
+        length = DurationParser.read(file, bufferStart, buffer);
+      }
+      int offset = (int) (position - bufferStart);
+      if (offset + 4 > length) {
+        break; // end of file
+      }
+      DurationParser.MpegFrameHeader frame =
+          DurationParser.MpegFrameHeader.parse(buffer, offset, length);
+      if (frame == null || (sampleRate != 0 && frame.sampleRate != sampleRate)) {
+        position++; // garbage or tags between frames, look for next sync
+        skipped++;
+        continue;
+      }
+      skipped = 0;
+      if (sampleRate == 0) {
+        sampleRate = frame.sampleRate;
+        firstBitrate = frame.bitrate;
+        if (DurationParser.isInfoFrame(buffer, offset, length, frame)) {
+          position += frame.frameLength; // VBR header frame contains no audio
+          continue;
+        }
+      }
+      vbr |= frame.bitrate != firstBitrate;
+      int time = (int) (samples * 1000 / sampleRate);
+      if (count == 0 || time >= times[count - 1] / INTERVAL_MS * INTERVAL_MS + INTERVAL_MS) {
+        if (count == times.length) {
+          times = Arrays.copyOf(times, count * 2);
+          offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        times[count] = time;
+        offsets[count] = position;
+        count++;
+      }
+      samples += frame.samplesPerFrame;
+      position += frame.frameLength;
+    }
+    if (!vbr || count == 0) {
+      return null;
+    }
+    return new Mp3SeekTable(Arrays.copyOf(times, count), Arrays.copyOf(offsets, count),
+                            (int) (samples * 1000 / sampleRate));
+  }
+
+  private boolean save(@NonNull File tableFile) {
+    // write to temporary file first, so that interrupted write won't leave broken table
+    File temp = new File(tableFile.getPath() + ".tmp");
+    DataOutputStream stream = null;
+    try {
+      stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      stream.writeInt(MAGIC);
+      stream.writeInt(VERSION);
+      stream.writeInt(duration);
+      stream.writeInt(times.length);
+      for (int i = 0; i < times.length; i++) {
+        stream.writeInt(times[i]);
+        stream.writeLong(offsets[i]);
+      }
+      stream.close();
+      stream = null;
+      if (!temp.renameTo(tableFile)) {
+        Log.e(TAG, "Failed to rename " + temp + " to " + tableFile);
+        return false;
+      }
+      return true;
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to save seek table " + tableFile, exception);
+      return false;
+    } finally {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException exception) {
+          Log.wtf(TAG, "Failed to close stream", exception);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return index or null if there is no valid index in tableFile
+   */
+  @Nullable
+  static Mp3SeekTable load(@NonNull File tableFile) {
+    if (!tableFile.exists()) {
+      return null;
+    }
+    DataInputStream stream = null;
+    try {
+      stream = new DataInputStream(new BufferedInputStream(new FileInputStream(tableFile)));
+      if (stream.readInt() != MAGIC || stream.readInt() != VERSION) {
+        Log.e(TAG, "Unknown seek table format " + tableFile);
+        return null;
+      }
+      int duration = stream.readInt();
+      int count = stream.readInt();
+      if (count <= 0 || count > duration / INTERVAL_MS + 1) {
+        Log.e(TAG, "Malformed seek table " + tableFile);
+        return null;
+      }
+      int[] times = new int[count];
+      long[] offsets = new long[count];
+      for (int i = 0; i < count; i++) {
+        times[i] = stream.readInt();
+        offsets[i] = stream.readLong();
+      }
+      return new Mp3SeekTable(times, offsets, duration);
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to load seek table " + tableFile, exception);
+      return null;
+    } finally {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException exception) {
+          Log.wtf(TAG, "Failed to close stream", exception);
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds index entry preceding given time and walks frames from it to the one being played at
+   * given time. Reads about INTERVAL_MS worth of frame headers.
+   *
+   * @return start time and offset of the frame being played at timeMs
+   */
+  @NonNull
+  Position find(@NonNull File media, int timeMs) throws IOException {
+    int entry = Arrays.binarySearch(times, timeMs);
+    if (entry < 0) {
+      entry = Math.max(0, -entry - 2); // insertion point - 1 is the last entry before timeMs
+    }
+    double time = times[entry];
+    int offset = 0;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    RandomAccessFile file = new RandomAccessFile(media, "r");
+    try {
+      int length = DurationParser.read(file, offsets[entry], buffer);
+      DurationParser.MpegFrameHeader frame;
+      while ((frame = DurationParser.MpegFrameHeader.parse(buffer, offset, length)) != null) {
+        double frameDuration = frame.samplesPerFrame * 1000.0 / frame.sampleRate;
+        if (time + frameDuration > timeMs) {
+          break;
+        }
+        time += frameDuration;
+        offset += frame.frameLength;
+      }
+    } finally {
+      try {
+        file.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, "Failed to close stream", exception);
+      }
+    }
+    return new Position((int) time, offsets[entry] + offset);
+  }
+}
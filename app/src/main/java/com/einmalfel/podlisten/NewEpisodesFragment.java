@@ -5,7 +5,6 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.RecyclerView;
@@ -39,6 +38,7 @@ public class NewEpisodesFragment extends DebuggableFragment implements LoaderMan
     rv.setItemAnimator(new DefaultItemAnimator());
     activity.getSupportLoaderManager().initLoader(activityPage.ordinal(), null, this);
     rv.setAdapter(adapter);
+    ImagePrefetcher.attach(rv, adapter);
     return layout;
   }
 
@@ -60,12 +60,13 @@ public class NewEpisodesFragment extends DebuggableFragment implements LoaderMan
 
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new CursorLoader(activity,
-                            Provider.episodeJoinPodcastUri,
-                            EpisodeListAdapter.REQUIRED_DB_COLUMNS,
-                            Provider.K_ESTATE + " = " + Provider.ESTATE_NEW,
-                            null,
-                            Provider.K_EDATE);
+    return new DiffCursorLoader(activity,
+                                Provider.episodeJoinPodcastUri,
+                                EpisodeListAdapter.REQUIRED_DB_COLUMNS,
+                                Provider.K_ESTATE + " = " + Provider.ESTATE_NEW,
+                                null,
+                                Provider.K_EDATE,
+                                DiffCursorLoader.EPISODE_SIGNATURE_COLUMNS);
   }
 
   @Override
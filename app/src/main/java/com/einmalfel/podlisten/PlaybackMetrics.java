@@ -0,0 +1,183 @@
+package com.einmalfel.podlisten;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Rolling statistics of playback launches and player health, kept for the lifetime of the process.
+ * Launch is timed phase by phase from playEpisode call to the moment playback starts at requested
+ * position, for the last WINDOW launches. Report is printed by PlayerService dump and shown on
+ * debug playback stats screen in preferences.
+ */
+class PlaybackMetrics {
+  private static final String TAG = "PBM";
+  private static final int WINDOW = 32;
+
+  enum Phase {
+    AUDIO_FOCUS, // request of audio focus
+    QUERY, // provider lookup of episode state and start position
+    SET_SOURCE, // seek table lookup and setDataSource
+    PREPARE, // prepareAsync till onPrepared
+    SEEK, // seek to start position, skipped if playback starts from the beginning
+    TOTAL // time to first audio
+  }
+
+  private static PlaybackMetrics instance;
+
+  // last WINDOW durations of each phase, ring buffers
+  private final long[][] samples = new long[Phase.values().length][WINDOW];
+  private final int[] sampleCounts = new int[Phase.values().length];
+  private long launchStart; // elapsedRealtime of current launch start, 0 if no launch in progress
+  private long phaseStart;
+  private boolean seekPending;
+  private int launches;
+  private int failedLaunches;
+  private int errors;
+  private int lastErrorWhat;
+  private int lastErrorExtra;
+  private int stalls;
+  private long stallStart; // 0 if player isn't stalled
+  private long stalledMs;
+
+  private PlaybackMetrics() {}
+
+  @NonNull
+  static synchronized PlaybackMetrics getInstance() {
+    if (instance == null) {
+      instance = new PlaybackMetrics();
+    }
+    return instance;
+  }
+
+  synchronized void launchStarted() {
+    launches++;
+    launchStart = phaseStart = SystemClock.elapsedRealtime();
+    seekPending = false;
+  }
+
+  /**
+   * Records duration of phase which has just ended. Ignored if no launch is in progress (e.g.
+   * player is re-prepared by seek)
+   */
+  synchronized void phaseDone(@NonNull Phase phase) {
+    if (launchStart == 0) {
+      return;
+    }
+    long now = SystemClock.elapsedRealtime();
+    addSample(phase, now - phaseStart);
+    phaseStart = now;
+  }
+
+  /**
+   * Called once player is prepared and started
+   *
+   * @param seeking player is seeking to start position, launch completes on seek completion
+   */
+  synchronized void playbackStarted(boolean seeking) {
+    phaseDone(Phase.PREPARE);
+    seekPending = seeking;
+    if (!seeking) {
+      launchDone();
+    }
+  }
+
+  synchronized void seekDone() {
+    if (seekPending) {
+      seekPending = false;
+      phaseDone(Phase.SEEK);
+      launchDone();
+    }
+  }
+
+  synchronized void launchDone() {
+    if (launchStart != 0) {
+      long total = SystemClock.elapsedRealtime() - launchStart;
+      addSample(Phase.TOTAL, total);
+      launchStart = 0;
+      Log.i(TAG, "Time to first audio " + total + "ms");
+    }
+  }
+
+  synchronized void launchFailed() {
+    if (launchStart != 0) {
+      failedLaunches++;
+      launchStart = 0;
+    }
+  }
+
+  synchronized void error(int what, int extra) {
+    errors++;
+    lastErrorWhat = what;
+    lastErrorExtra = extra;
+  }
+
+  /**
+   * Called when player runs out of buffered data and when it resumes playback
+   */
+  synchronized void stall(boolean stalled) {
+    long now = SystemClock.elapsedRealtime();
+    if (stalled && stallStart == 0) {
+      stalls++;
+      stallStart = now;
+    } else if (!stalled && stallStart != 0) {
+      stalledMs += now - stallStart;
+      stallStart = 0;
+    }
+  }
+
+  /**
+   * Drops all collected data. Launch or stall in progress is forgotten as well, so that it
+   * doesn't contribute a sample measured from before the reset
+   */
+  synchronized void reset() {
+    for (long[] phaseSamples : samples) {
+      Arrays.fill(phaseSamples, 0);
+    }
+    Arrays.fill(sampleCounts, 0);
+    launches = failedLaunches = errors = stalls = 0;
+    lastErrorWhat = lastErrorExtra = 0;
+    launchStart = phaseStart = stallStart = stalledMs = 0;
+    seekPending = false;
+  }
+
+  private void addSample(@NonNull Phase phase, long durationMs) {
+    int index = phase.ordinal();
+    samples[index][sampleCounts[index] % WINDOW] = durationMs;
+    sampleCounts[index]++;
+  }
+
+  @NonNull
+  synchronized String getReport() {
+    StringBuilder result = new StringBuilder();
+    result.append("Launch phases, last ").append(WINDOW).append(" launches:\n");
+    for (Phase phase : Phase.values()) {
+      int count = Math.min(sampleCounts[phase.ordinal()], WINDOW);
+      result.append(phase).append(": ");
+      if (count == 0) {
+        result.append("no data\n");
+        continue;
+      }
+      long[] sorted = Arrays.copyOf(samples[phase.ordinal()], count);
+      Arrays.sort(sorted);
+      result.append("median ").append(sorted[count / 2])
+            .append("ms, p90 ").append(sorted[(count * 9 - 1) / 10])
+            .append("ms, max ").append(sorted[count - 1]).append("ms\n");
+    }
+    result.append("Launches: ").append(launches).append(", failed ").append(failedLaunches)
+          .append('\n');
+    result.append("Player errors: ").append(errors);
+    if (errors > 0) {
+      result.append(", last ").append(lastErrorWhat).append('/').append(lastErrorExtra);
+    }
+    result.append('\n');
+    long stalled = stalledMs;
+    if (stallStart != 0) {
+      stalled += SystemClock.elapsedRealtime() - stallStart;
+    }
+    result.append("Stalls: ").append(stalls).append(", stalled ").append(stalled).append("ms");
+    return result.toString();
+  }
+}
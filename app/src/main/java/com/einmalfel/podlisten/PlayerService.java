@@ -12,23 +12,33 @@ import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
-import android.support.v4.content.CursorLoader;
-import android.support.v4.content.Loader;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PlayerService extends DebuggableService implements MediaPlayer.OnSeekCompleteListener,
     MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener, MediaPlayer.OnPreparedListener,
-    AudioManager.OnAudioFocusChangeListener, Loader.OnLoadCompleteListener<Cursor> {
+    MediaPlayer.OnInfoListener, AudioManager.OnAudioFocusChangeListener, PlaylistIndex.Listener {
 
 
   enum State {
@@ -48,6 +58,43 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
     PROGRESS, STATE
   }
 
+  private enum TransitionType {
+    CHAINED, // next player was started by MediaPlayer itself, see setNextMediaPlayer
+    PRELOADED, // next player was prepared in advance and started on completion
+    COLD // next episode was prepared after completion of previous one
+  }
+
+  /**
+   * Latencies of automatic transitions from completed episode to the next one, measured from
+   * completion callback to start of next episode playback
+   */
+  private static class TransitionStats {
+    private final int[] counts = new int[TransitionType.values().length];
+    private final long[] totalMs = new long[TransitionType.values().length];
+    private final long[] maxMs = new long[TransitionType.values().length];
+
+    void add(@NonNull TransitionType type, long latencyMs) {
+      counts[type.ordinal()]++;
+      totalMs[type.ordinal()] += latencyMs;
+      maxMs[type.ordinal()] = Math.max(maxMs[type.ordinal()], latencyMs);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder result = new StringBuilder("Transitions:");
+      for (TransitionType type : TransitionType.values()) {
+        int count = counts[type.ordinal()];
+        result.append(' ').append(type).append(" count ").append(count);
+        if (count > 0) {
+          result.append(" avg ").append(totalMs[type.ordinal()] / count)
+                .append("ms max ").append(maxMs[type.ordinal()]).append("ms");
+        }
+        result.append(';');
+      }
+      return result.toString();
+    }
+  }
+
   interface PlayerStateListener {
     void progressUpdate(int position, int max);
 
@@ -83,165 +130,246 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
     }
   }
 
-  private class CallbackThread extends Thread {
-    private final List<PlayerStateListener> listeners = new ArrayList<>(2);
+  /**
+   * Immutable player state, published by event loop thread after each change. Getters read it
+   * from any thread without waiting for the loop.
+   */
+  static final class Snapshot {
+    final State state;
+    final long episodeId;
+    final int progress;
+    final int length;
+    final boolean preparing;
+    final long timestamp; // elapsedRealtime when progress was read from player
+
+    Snapshot(State state, long episodeId, int progress, int length, boolean preparing) {
+      this.state = state;
+      this.episodeId = episodeId;
+      this.progress = progress;
+      this.length = length;
+      this.preparing = preparing;
+      this.timestamp = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return progress extrapolated to current time if playing
+     */
+    int getProgress() {
+      if (state != State.PLAYING || preparing) {
+        return progress;
+      }
+      long result = progress + SystemClock.elapsedRealtime() - timestamp;
+      return (int) (length > 0 ? Math.min(result, length) : result);
+    }
+  }
+
+  private class ScreenStateReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+      if (screenOn) {
+        eventLoop.restartTicks();
+      }
+    }
+  }
+
+  /**
+   * Delivers listener callbacks and progress ticks on its own looper thread.
+   * Callbacks requested with post are coalesced into dirty flags until the loop gets to them.
+   * Progress is ticked every FAST_TICK_MS while playing and there are listeners, which could be
+   * seen (screen is on), otherwise ticks are slowed down to SLOW_TICK_MS, as they are only needed
+   * to checkpoint position.
+   */
+  private static class EventLoop extends Handler {
+    private static final int MSG_DISPATCH = 1;
+    private static final int MSG_TICK = 2;
+    private static final int FAST_TICK_MS = 500;
+    private static final int SLOW_TICK_MS = 2000;
+
+    private final List<PlayerStateListener> listeners = new CopyOnWriteArrayList<>();
     private final PlayerService service;
-    private final BlockingQueue<CallbackType> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger dirty = new AtomicInteger(); // bit per CallbackType
+    private volatile boolean listenerAdded = false;
+    // fields below are accessed from loop thread only
     private int lastLength = -1;
     private int lastProgress = -1;
     private PlayerService.State lastState = PlayerService.State.UPDATE_ME;
     private long lastEpisode = -1;
 
-    CallbackThread(PlayerService service) {
+    EventLoop(@NonNull Looper looper, @NonNull PlayerService service) {
+      super(looper);
       this.service = service;
     }
 
     @Override
-    public void run() {
-      Log.d(TAG, "Starting callback thread");
-      while (!isInterrupted()) {
-        CallbackType ct;
-        try {
-          // report progress every 500ms if playing and queue is empty
-          if (service.getState() == PlayerService.State.PLAYING) {
-            ct = queue.poll(500, TimeUnit.MILLISECONDS);
-          } else {
-            ct = queue.take();
-          }
-          if (ct == null) {
-            ct = CallbackType.PROGRESS;
-          }
-        } catch (InterruptedException ignored) {
+    public void handleMessage(Message msg) {
+      switch (msg.what) {
+        case MSG_TICK:
+          setDirty(CallbackType.PROGRESS);
+          dispatch();
           break;
+        case MSG_DISPATCH:
+          dispatch();
+          break;
+        default:
+          throw new AssertionError("Unknown message " + msg.what);
+      }
+    }
+
+    private void dispatch() {
+      int flags = dirty.getAndSet(0);
+      if (listenerAdded) {
+        listenerAdded = false;
+        lastLength = -1;
+        lastProgress = -1;
+        lastState = PlayerService.State.UPDATE_ME;
+        lastEpisode = -1;
+      }
+      // Player state is owned by loop thread, so position is read and saved without locking.
+      // Service calls from UI wait for listeners though, so these shouldn't block on UI thread.
+      // Progress goes before state to increase chances to see episode image in player
+      // notification after system-ui crash/restart
+      Snapshot snapshot = service.snapshot.get();
+      if ((flags & flag(CallbackType.PROGRESS)) != 0) {
+        snapshot = service.onProgressTick();
+        if (lastLength != snapshot.length || lastProgress != snapshot.progress) {
+          sendProgressUpdate(snapshot);
+          lastLength = snapshot.length;
+          lastProgress = snapshot.progress;
         }
-        // Other methods of callbackThread could be called from PlayerService only.
-        // Syncing on service, not on this, to prevent deadlocking
-        synchronized (service) {
-          switch (ct) {
-            case STATE:
-              if (lastState != service.getState() || lastEpisode != currentId) {
-                sendStateUpdate();
-                lastState = service.state;
-                lastEpisode = currentId;
-              }
-              break;
-            case PROGRESS:
-              if (lastLength != service.length || lastProgress != service.getProgress()) {
-                sendProgressUpdate();
-                lastLength = service.length;
-                lastProgress = service.progress;
-              }
-              if (fixingEndingSkip
-                  && service.length - service.progress < TRACK_ENDING_THRESHOLD_MS) {
-                Log.i(TAG, "Fixing ending skip: calling onCompletion, pos: " + service.progress);
-                onCompletion(player);
-              }
-              break;
-            default:
-              throw new AssertionError("Unknown callback type " + ct);
-          }
+      }
+      if ((flags & flag(CallbackType.STATE)) != 0) {
+        if (lastState != snapshot.state || lastEpisode != snapshot.episodeId) {
+          sendStateUpdate(snapshot);
+          lastState = snapshot.state;
+          lastEpisode = snapshot.episodeId;
         }
       }
-      Log.d(TAG, "Finishing callback thread");
+      if (snapshot.state == State.PLAYING && !hasMessages(MSG_TICK)) {
+        sendEmptyMessageDelayed(MSG_TICK, getTickInterval());
+      }
     }
 
-    private void sendStateUpdate() {
-      Log.d(TAG, "Sending new playback state " + service.getState() + " id " + currentId);
-      for (PlayerStateListener listener : listeners) {
-        listener.stateUpdate(service.state, currentId);
+    private int getTickInterval() {
+      if (service.fixingEndingSkip) {
+        return FAST_TICK_MS; // ending is detected by position
       }
+      return service.screenOn && !listeners.isEmpty() ? FAST_TICK_MS : SLOW_TICK_MS;
     }
 
-    private void sendProgressUpdate() {
+    private void sendStateUpdate(@NonNull Snapshot snapshot) {
+      Log.d(TAG, "Sending new playback state " + snapshot.state + " id " + snapshot.episodeId);
       for (PlayerStateListener listener : listeners) {
-        listener.progressUpdate(service.progress, service.length);
+        listener.stateUpdate(snapshot.state, snapshot.episodeId);
       }
-      if (!service.state.isStopped()) {
-        ContentValues values = new ContentValues(2);
-        values.put(Provider.K_EPLAYED, service.progress);
-        values.put(Provider.K_ELENGTH, service.length);
-        service.getContentResolver()
-               .update(Provider.getUri(Provider.T_EPISODE, service.currentId), values, null, null);
+    }
+
+    private void sendProgressUpdate(@NonNull Snapshot snapshot) {
+      for (PlayerStateListener listener : listeners) {
+        listener.progressUpdate(snapshot.progress, snapshot.length);
       }
     }
 
     void addListener(PlayerStateListener listener) {
-      synchronized (service) {
-        listeners.add(listener);
-        lastLength = -1;
-        lastProgress = -1;
-        lastState = PlayerService.State.UPDATE_ME;
-        lastEpisode = -1;
-        post(CallbackType.STATE);
-        post(CallbackType.PROGRESS);
-      }
+      listeners.add(listener);
+      listenerAdded = true;
+      // progress tick on loop thread publishes fresh snapshot before sending it
+      setDirty(CallbackType.STATE);
+      setDirty(CallbackType.PROGRESS);
+      sendEmptyMessage(MSG_DISPATCH);
     }
 
     void rmListener(PlayerStateListener listener) {
-      synchronized (service) {
-        listeners.remove(listener);
-      }
-    }
-
-    void post(CallbackType callback) {
-      synchronized (service) {
-        queue.add(callback);
-        if (queue.size() > 1) {
-          // reorder queue:
-          // - squash duplicated callbacks
-          // - call STATE after PROGRESS to increase chances to see episode image in player
-          // notification after system-ui crash/restart
-          boolean progressCbPending = false;
-          boolean stateCbPending = false;
-          for (CallbackType enqueued : queue) {
-            switch (enqueued) {
-              case STATE:
-                stateCbPending = true;
-                break;
-              case PROGRESS:
-                progressCbPending = true;
-                break;
-              default:
-                throw new AssertionError();
-            }
-            if (progressCbPending && stateCbPending) {
-              break;
-            }
-          }
-          queue.clear();
-          if (progressCbPending && stateCbPending) {
-            queue.add(CallbackType.PROGRESS);
-            queue.add(CallbackType.STATE);
-          } else if (progressCbPending) {
-            queue.add(CallbackType.PROGRESS);
-          } else {
-            queue.add(CallbackType.STATE);
-          }
-        }
+      listeners.remove(listener);
+    }
+
+    /**
+     * Ticks progress right away and reschedules following ticks with current interval
+     */
+    void restartTicks() {
+      removeMessages(MSG_TICK);
+      sendEmptyMessage(MSG_TICK);
+    }
+
+    /**
+     * Publishes new state snapshot and schedules listeners callback. Called on loop thread
+     */
+    void post(@NonNull CallbackType callback) {
+      service.publish();
+      if (setDirty(callback) == 0) {
+        sendEmptyMessage(MSG_DISPATCH);
       }
     }
+
+    /**
+     * @return flags before update
+     */
+    private int setDirty(@NonNull CallbackType callback) {
+      int old;
+      do {
+        old = dirty.get();
+      } while (!dirty.compareAndSet(old, old | flag(callback)));
+      return old;
+    }
+
+    private int flag(@NonNull CallbackType callback) {
+      return 1 << callback.ordinal();
+    }
   }
 
   private static final int NOTIFICATION_ID = 2;
   private static final String TAG = "PPS";
   private static final float NO_FOCUS_VOLUME = 0.2f;
-  private static final int LOADER_ID = 10;
   private static final int TRACK_ENDING_THRESHOLD_MS = 500;
-
-  private final CallbackThread callbackThread = new CallbackThread(this);
+  private static final int RESTART_THRESHOLD_MS = 5000; // play from start if this close to end
+  // seeks this short are done within opened source, longer ones reopen it, see seek
+  private static final int SHORT_SEEK_MS = 60000;
+
+  private final HandlerThread eventThread = new HandlerThread("PlayerEventLoop");
+  private EventLoop eventLoop;
+  private final ScreenStateReceiver screenStateReceiver = new ScreenStateReceiver();
+  private volatile boolean screenOn = true; // service is normally started from visible UI
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(
+      new Snapshot(State.STOPPED, 0, 0, 0, false));
   private final NoisyAudioReceiver noisyAudioReceiver = new NoisyAudioReceiver();
   private MediaPlayer player;
   private long currentId;
   private int startSeek;
+  // frame index of current local file, null if episode is streamed or isn't VBR MP3
+  @Nullable
+  private Mp3SeekTable seekTable;
+  @Nullable
+  private File sourceFile; // local file being played
+  private int sourceBase; // [ms] position data source was opened at, see openSource
+  private int pendingSeek = -1; // [ms] seek requested while preparing, -1 if none
   private int progress;
   private int length;
   private boolean preparing = false;
   private State state = State.STOPPED;
   private int focusMode;
-  private float audioVolume = 1f;
-  private CursorLoader playableEpisodesLoader;
-  private Cursor playableEpisodes;
+  private volatile float audioVolume = 1f;
+  private PlaylistIndex playableEpisodes;
   private boolean fixingEndingSkip;
+  @Nullable
+  private StreamingProxy streamingProxy; // created on first playback of not downloaded episode
+  // player prepared in advance for predicted next episode, see preloadNext
+  private MediaPlayer nextPlayer;
+  private long nextId;
+  private int nextStartSeek;
+  private int nextLength;
+  @Nullable
+  private Mp3SeekTable nextSeekTable;
+  @Nullable
+  private File nextSourceFile;
+  private int nextSourceBase;
+  private boolean nextPrepared;
+  private boolean nextChained; // nextPlayer is set as next player of current one
+  private long transitionStart; // completion time of previous episode, 0 if not in transition
+  private final TransitionStats transitionStats = new TransitionStats();
+  private final PlaybackMetrics metrics = PlaybackMetrics.getInstance();
+  @Nullable
+  private PositionJournal positionJournal; // null if journal file couldn't be mapped
+  private long lastPositionFlush; // elapsedRealtime of last journal flush
 
   class LocalBinder extends Binder {
     PlayerService getService() {
@@ -259,17 +387,30 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
   public void onCreate() {
     super.onCreate();
     Log.d(TAG, "Creating service");
-    initPlayer();
-    playableEpisodesLoader = new CursorLoader(
-        this,
-        Provider.episodeUri, new String[]{Provider.K_ID},
-        Provider.K_ESTATE + " == " + Provider.ESTATE_IN_PLAYLIST + " AND "
-            + Provider.K_EDFIN + " == " + Provider.EDFIN_COMPLETE,
-        null,
-        Preferences.getInstance().getSortingMode().toSql());
-    playableEpisodesLoader.registerListener(LOADER_ID, this);
-    playableEpisodesLoader.startLoading();
-    callbackThread.start();
+    try {
+      positionJournal = new PositionJournal(this);
+      int replayed = positionJournal.flush(getContentResolver());
+      if (replayed > 0) {
+        Log.i(TAG, "Recovered playback positions of " + replayed + " episodes from journal");
+      }
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to open position journal, positions will be saved directly", exception);
+    }
+    eventThread.start();
+    eventLoop = new EventLoop(eventThread.getLooper(), this);
+    // MediaPlayer delivers callbacks to looper of the thread it was created on
+    callOnLoop(new Callable<Void>() {
+      @Override
+      public Void call() {
+        initPlayer();
+        return null;
+      }
+    });
+    playableEpisodes = new PlaylistIndex(this, this);
+    playableEpisodes.start();
+    IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+    screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+    registerReceiver(screenStateReceiver, screenFilter);
     focusMode = AudioManager.AUDIOFOCUS_LOSS;
     if (Preferences.getInstance().getPlayerForeground()) {
       // Service process was crashed/killed while running foreground. Service is restarting now.
@@ -285,12 +426,14 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
   public void onDestroy() {
     Log.d(TAG, "Destroying service");
     stop();
-    playableEpisodesLoader.unregisterListener(this);
-    playableEpisodesLoader.cancelLoad();
-    playableEpisodesLoader.stopLoading();
-    callbackThread.interrupt();
+    playableEpisodes.close();
+    if (streamingProxy != null) {
+      streamingProxy.close();
+    }
+    unregisterReceiver(screenStateReceiver);
+    eventThread.quit();
     try {
-      callbackThread.join();
+      eventThread.join();
     } catch (InterruptedException exception) {
       Log.e(TAG, "unexpected interrupt ", exception);
       Thread.currentThread().interrupt();
@@ -299,90 +442,167 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
   }
 
   @Override
-  public synchronized void onLoadComplete(Loader<Cursor> loader, Cursor data) {
-    if (data == null) {
-      Log.wtf(TAG, "Unexpectedly got null from cursor loader", new AssertionError());
-      return;
-    }
-    playableEpisodes = data;
-    if (currentId == 0 && data.moveToFirst()) {
-      currentId = data.getLong(data.getColumnIndexOrThrow(Provider.K_ID));
+  public void onPlaylistChanged() {
+    eventLoop.post(new Runnable() {
+      @Override
+      public void run() {
+        onPlaylistChangedOnLoop();
+      }
+    });
+  }
+
+  private void onPlaylistChangedOnLoop() {
+    if (currentId == 0 && playableEpisodes.size() > 0) {
+      currentId = playableEpisodes.getFirst();
+      DownloadScheduler.setCurrentEpisode(this, currentId);
     }
-    if (state.isStopped() && data.getCount() == 0) {
+    if (state.isStopped() && playableEpisodes.size() == 0) {
       state = State.STOPPED_EMPTY;
     }
-    callbackThread.post(CallbackType.STATE);
+    eventLoop.post(CallbackType.STATE);
+    if (!preparing) {
+      preloadNext(); // playlist changed, re-check predicted next episode
+    }
   }
 
   @Override
-  public synchronized void onCompletion(MediaPlayer mp) {
+  public void onCompletion(MediaPlayer mp) {
+    if (mp != player) {
+      return;
+    }
     if (!fixingEndingSkip && Preferences.getInstance().fixSkipEnding()) {
       Log.i(TAG, "Fixing ending skip: ignoring onCompletion");
       fixingEndingSkip = true;
     } else {
       if (Preferences.getInstance().getCompleteAction() == Preferences.CompleteAction.DO_NOTHING) {
-        pause();
+        releaseNextPlayer(); // it could be chained before complete action was changed
+        pauseOnLoop();
       } else {
-        playNext();
+        transitionStart = SystemClock.elapsedRealtime();
+        playNextOnLoop();
       }
     }
   }
 
   @Override
   public void onSeekComplete(MediaPlayer mp) {
-    synchronized (this) {
-      fixingEndingSkip = false;
-      progress = mp.getCurrentPosition();
-      callbackThread.post(CallbackType.PROGRESS);
-      Log.d(TAG, "Seek done. Position " + progress);
+    if (mp != player) {
+      return; // next player seeked to its start position
     }
+    fixingEndingSkip = false;
+    progress = sourceBase + mp.getCurrentPosition();
+    eventLoop.post(CallbackType.PROGRESS);
+    metrics.seekDone();
+    Log.d(TAG, "Seek done. Position " + progress);
   }
 
   @Override
   public boolean onError(MediaPlayer mp, int what, int extra) {
-    synchronized (this) {
-      Log.e(TAG, "MP error, codes " + what + " " + extra);
-      state = State.STOPPED_ERROR;
-      preparing = false;
-      callbackThread.post(CallbackType.STATE);
+    metrics.error(what, extra);
+    if (mp == nextPlayer) {
+      Log.e(TAG, "Next player error, codes " + what + " " + extra + ", episode " + nextId);
+      releaseNextPlayer();
+      return true;
     }
+    Log.e(TAG, "MP error, codes " + what + " " + extra);
+    metrics.launchFailed();
+    metrics.stall(false);
+    transitionStart = 0;
+    state = State.STOPPED_ERROR;
+    preparing = false;
+    pendingSeek = -1;
+    eventLoop.post(CallbackType.STATE);
     return true;
   }
 
   @Override
   public void onPrepared(MediaPlayer mp) {
-    synchronized (this) {
-      preparing = false;
-      length = mp.getDuration();
-      Log.d(TAG, "Playback prepared (length " + length + "), starting..");
-      if (startSeek > 0) {
-        mp.seekTo(startSeek); // progress will be reported in seek callback
-      } else {
-        callbackThread.post(CallbackType.PROGRESS);
-      }
+    if (mp == nextPlayer) {
+      onNextPrepared();
+      return;
+    }
+    preparing = false;
+    int seekTarget = pendingSeek;
+    pendingSeek = -1;
+    if (seekTarget >= 0) {
+      startSeek = 0; // superseded by seek requested while preparing
+    }
+    // with data source opened in the middle, player reports duration of the rest of the file
+    length = seekTable == null ? mp.getDuration() : seekTable.getDuration();
+    Log.d(TAG, "Playback prepared (length " + length + "), starting..");
+    if (startSeek > 0) {
+      mp.seekTo(startSeek); // progress will be reported in seek callback
+    } else if (seekTarget < 0) {
+      eventLoop.post(CallbackType.PROGRESS);
+    }
+    if (state == State.PLAYING) { // source could be reopened by seek while paused
       mp.start();
     }
+    metrics.playbackStarted(startSeek > 0);
+    recordTransition(TransitionType.COLD);
+    if (seekTarget >= 0) {
+      seekOnLoop(seekTarget);
+    }
+    preloadNext();
+  }
+
+  @Override
+  public boolean onInfo(MediaPlayer mp, int what, int extra) {
+    if (mp != player) {
+      return false;
+    }
+    switch (what) {
+      case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+        Log.w(TAG, "Playback stalled, buffering");
+        metrics.stall(true);
+        break;
+      case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+        metrics.stall(false);
+        break;
+      default:
+        break;
+    }
+    return false;
+  }
+
+  private void onNextPrepared() {
+    nextPrepared = true;
+    nextLength = nextSeekTable == null ? nextPlayer.getDuration() : nextSeekTable.getDuration();
+    Log.d(TAG, "Next episode " + nextId + " prepared (length " + nextLength + ")");
+    if (nextStartSeek > 0) {
+      nextPlayer.seekTo(nextStartSeek);
+    }
+    chainNext();
   }
 
   @Override
-  public synchronized void onAudioFocusChange(int focusChange) {
+  public void onAudioFocusChange(final int focusChange) {
+    eventLoop.post(new Runnable() {
+      @Override
+      public void run() {
+        onAudioFocusChangeOnLoop(focusChange);
+      }
+    });
+  }
+
+  private void onAudioFocusChangeOnLoop(int focusChange) {
     Log.i(TAG, "Audio focus chagned from " + focusMode + " to " + focusChange);
     switch (focusChange) {
       case AudioManager.AUDIOFOCUS_GAIN:
         if (focusMode == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK) {
-          setVolume(1f);
+          setVolumeOnLoop(1f);
         } else if (focusMode == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT && state == State.PLAYING) {
-          resume();
+          resumeOnLoop();
         }
         break;
       case AudioManager.AUDIOFOCUS_LOSS:
-        stop();
+        stopOnLoop();
         break;
       case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-        pause();
+        pauseOnLoop();
         break;
       case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-        setVolume(NO_FOCUS_VOLUME);
+        setVolumeOnLoop(NO_FOCUS_VOLUME);
         break;
       default:
         Log.w(TAG, "Unhandled audio focus change: " + focusChange);
@@ -390,69 +610,188 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
     focusMode = focusChange;
   }
 
-  public synchronized void addListener(PlayerStateListener listener) {
-    callbackThread.addListener(listener);
+  /**
+   * Runs call on event loop thread and waits for its result. All MediaPlayer interaction and
+   * playback state changes go through event loop, so public methods don't need to lock service.
+   */
+  private <T> T callOnLoop(@NonNull Callable<T> call) {
+    FutureTask<T> task = new FutureTask<>(call);
+    if (Looper.myLooper() == eventThread.getLooper() || !eventLoop.post(task)) {
+      task.run(); // already on loop, or loop has quit while service is being destroyed
+    }
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException exception) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException exception) {
+      Throwable cause = exception.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new AssertionError(cause);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
-  public synchronized void rmListener(PlayerStateListener listener) {
-    callbackThread.rmListener(listener);
+  public void addListener(PlayerStateListener listener) {
+    eventLoop.addListener(listener);
   }
 
-  public synchronized State getState() {
-    return state;
+  public void rmListener(PlayerStateListener listener) {
+    eventLoop.rmListener(listener);
   }
 
-  public synchronized long getEpisodeId() {
-    return currentId;
+  // getters below don't lock service, they read the last published snapshot
+
+  public State getState() {
+    return snapshot.get().state;
   }
 
-  public synchronized int getProgress() {
-    if (!state.isStopped() && !preparing) {
-      progress = player.getCurrentPosition();
+  public long getEpisodeId() {
+    return snapshot.get().episodeId;
+  }
+
+  public int getProgress() {
+    return snapshot.get().getProgress();
+  }
+
+  @VisibleForTesting
+  @NonNull
+  Snapshot getSnapshot() {
+    return snapshot.get();
+  }
+
+  private int readProgress() {
+    if (!state.isStopped() && !preparing && player != null) {
+      progress = sourceBase + player.getCurrentPosition();
     }
     return progress;
   }
 
-  public synchronized boolean jumpForward() {
-    return seek(getProgress() + Preferences.getInstance().getJumpInterval().inMilliseconds());
+  /**
+   * Publishes current state for lock-free getters and listeners
+   */
+  private Snapshot publish() {
+    Snapshot result = new Snapshot(state, currentId, readProgress(), length, preparing);
+    snapshot.set(result);
+    return result;
   }
 
-  public synchronized boolean jumpBackward() {
-    return seek(getProgress() - Preferences.getInstance().getJumpInterval().inMilliseconds());
+  /**
+   * Called by event loop on progress update
+   *
+   * @return published state
+   */
+  private Snapshot onProgressTick() {
+    Snapshot result = publish();
+    if (!state.isStopped()) {
+      savePosition();
+    }
+    if (fixingEndingSkip && length - progress < TRACK_ENDING_THRESHOLD_MS) {
+      Log.i(TAG, "Fixing ending skip: calling onCompletion, pos: " + progress);
+      onCompletion(player);
+      result = snapshot.get();
+    }
+    return result;
+  }
+
+  public boolean jumpForward() {
+    return callOnLoop(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return seekOnLoop(
+            readProgress() + Preferences.getInstance().getJumpInterval().inMilliseconds());
+      }
+    });
+  }
+
+  public boolean jumpBackward() {
+    return callOnLoop(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return seekOnLoop(
+            readProgress() - Preferences.getInstance().getJumpInterval().inMilliseconds());
+      }
+    });
   }
 
-  public synchronized void setVolume(float volume) {
+  public void setVolume(final float volume) {
+    callOnLoop(new Callable<Void>() {
+      @Override
+      public Void call() {
+        setVolumeOnLoop(volume);
+        return null;
+      }
+    });
+  }
+
+  private void setVolumeOnLoop(float volume) {
     audioVolume = volume;
     if (player != null) {
       player.setVolume(volume, volume);
     }
+    if (nextPlayer != null) {
+      nextPlayer.setVolume(volume, volume);
+    }
   }
 
-  public synchronized float getVolume() {
+  public float getVolume() {
     return audioVolume;
   }
 
-  public synchronized boolean seek(int timeMs) {
-    if ((state == State.PLAYING && !preparing) || state == State.PAUSED) {
+  public boolean seek(final int timeMs) {
+    return callOnLoop(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return seekOnLoop(timeMs);
+      }
+    });
+  }
+
+  private boolean seekOnLoop(int timeMs) {
+    if (state == State.PLAYING || state == State.PAUSED) {
       if (timeMs < 0) {
         timeMs = 0;
         Log.d(TAG, "Attempting to seek with negative position. Seeking to zero");
       }
+      if (preparing) {
+        // applied once prepared. Progress follows the target, so that repeated jumps add up
+        Log.d(TAG, "Player is preparing, postponing seek to " + timeMs);
+        pendingSeek = length != 0 && timeMs > length ? length : timeMs;
+        progress = pendingSeek;
+        eventLoop.post(CallbackType.PROGRESS);
+        return true;
+      }
       if (length != 0 && timeMs > length) {
         if (Preferences.getInstance()
                        .getCompleteAction() == Preferences.CompleteAction.DO_NOTHING) {
-          seek(length);
+          seekOnLoop(length);
           return true;
         } else {
           Log.d(TAG, "Attempting to seek past file end, playing next episode");
           progress = length;
-          callbackThread.sendProgressUpdate();
-          return playNext();
+          savePosition();
+          eventLoop.post(CallbackType.PROGRESS);
+          return playNextOnLoop();
         }
       } else {
         Log.d(TAG, "Seeking to " + timeMs);
         fixingEndingSkip = false;
-        player.seekTo(timeMs);
+        if (seekTable != null && sourceFile != null
+            && (timeMs < sourceBase || Math.abs(timeMs - readProgress()) > SHORT_SEEK_MS)) {
+          return reopen(sourceFile, timeMs);
+        }
+        player.seekTo(timeMs - sourceBase);
         return true;
       }
     } else {
@@ -461,11 +800,273 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
     }
   }
 
+  /**
+   * Sets local file as data source of mp. If file has seek table and playback doesn't start from
+   * the beginning, file is opened right at the frame being played at positionMs
+   *
+   * @return position of data source start in ms
+   */
+  private int openSource(@NonNull MediaPlayer mp, @NonNull File file,
+                         @Nullable Mp3SeekTable table, int positionMs) throws IOException {
+    if (table == null || positionMs <= 0) {
+      mp.setDataSource(this, Uri.fromFile(file));
+      return 0;
+    }
+    Mp3SeekTable.Position position = table.find(file, positionMs);
+    FileInputStream stream = new FileInputStream(file);
+    try {
+      // player keeps its own duplicate of descriptor
+      mp.setDataSource(stream.getFD(), position.offset, file.length() - position.offset);
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, "Failed to close stream", exception);
+      }
+    }
+    return position.time;
+  }
+
+  /**
+   * Seeks by reopening current file at the frame being played at timeMs, which is both faster
+   * and more precise than MediaPlayer seeking in VBR files. Used for long seeks only, as audio
+   * drops out while reopened source is being prepared
+   */
+  private boolean reopen(@NonNull File file, int timeMs) {
+    initPlayer();
+    try {
+      sourceBase = openSource(player, file, seekTable, timeMs);
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to reopen " + file + " at " + timeMs, exception);
+      state = State.STOPPED_ERROR;
+      eventLoop.post(CallbackType.STATE);
+      return false;
+    }
+    preparing = true;
+    startSeek = 0;
+    progress = sourceBase;
+    player.prepareAsync();
+    eventLoop.post(CallbackType.PROGRESS);
+    return true;
+  }
+
   private void releasePlayer() {
+    releaseNextPlayer();
     if (player != null) {
       player.release();
       player = null;
     }
+    stopStreaming(currentId);
+    metrics.stall(false);
+  }
+
+  /**
+   * Lets streaming proxy forget the file of episode which player doesn't read anymore
+   */
+  private void stopStreaming(long id) {
+    if (streamingProxy != null) {
+      streamingProxy.remove(id);
+    }
+  }
+
+  private void releaseNextPlayer() {
+    if (nextPlayer != null) {
+      if (nextChained && player != null) {
+        player.setNextMediaPlayer(null);
+      }
+      nextPlayer.release();
+      nextPlayer = null;
+    }
+    nextId = 0;
+    nextPrepared = false;
+    nextChained = false;
+    nextSeekTable = null;
+    nextSourceFile = null;
+    nextSourceBase = 0;
+  }
+
+  /**
+   * @return episode which will be played after the current one completes, 0 if unknown
+   */
+  private long predictNext() {
+    Preferences.CompleteAction completeAction = Preferences.getInstance().getCompleteAction();
+    if (!playableEpisodes.isLoaded() || currentId == 0
+        || completeAction == Preferences.CompleteAction.DO_NOTHING
+        || completeAction == Preferences.CompleteAction.DELETE_DO_NOTHING) {
+      return 0;
+    }
+    return playableEpisodes.getNext(
+        currentId, completeAction == Preferences.CompleteAction.PLAY_FIRST
+            || completeAction == Preferences.CompleteAction.DELETE_PLAY_FIRST);
+  }
+
+  /**
+   * Prepares second MediaPlayer for predicted next episode, so that playNext doesn't need to
+   * wait for data source setup, preparation and start position lookup.
+   * If predicted episode changed since last call, previously prepared player is released.
+   */
+  private void preloadNext() {
+    long predicted = state == State.PLAYING || state == State.PAUSED ? predictNext() : 0;
+    if (predicted == nextId && nextPlayer != null) {
+      chainNext(); // current player could be re-initialized since next one was prepared
+      return;
+    }
+    releaseNextPlayer();
+    if (predicted == 0) {
+      return;
+    }
+
+    File dir;
+    synchronized (Preferences.getInstance()) {
+      Storage storage = Preferences.getInstance().getStorage();
+      if (storage == null || !storage.isAvailableRead()) {
+        return;
+      }
+      dir = storage.getPodcastDir();
+    }
+    File source = new File(dir, Long.toString(predicted));
+    if (!source.exists()) {
+      return;
+    }
+
+    Cursor cursor = getContentResolver().query(
+        Provider.getUri(Provider.T_EPISODE, predicted),
+        new String[]{Provider.K_EPLAYED, Provider.K_ELENGTH},
+        null, null, null);
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null from query");
+    }
+    nextStartSeek = cursor.moveToFirst() ? getStartSeek(cursor.getInt(0), cursor.getInt(1)) : 0;
+    cursor.close();
+
+    Log.d(TAG, "Preparing next episode " + predicted + " from " + nextStartSeek);
+    nextPlayer = createPlayer();
+    nextId = predicted;
+    nextSeekTable = Mp3SeekTable.load(Mp3SeekTable.getFile(dir, predicted));
+    nextSourceFile = source;
+    try {
+      nextSourceBase = openSource(nextPlayer, source, nextSeekTable, nextStartSeek);
+      if (nextSeekTable != null) {
+        nextStartSeek = 0; // source is opened right at start position
+      }
+      nextPlayer.prepareAsync();
+    } catch (IOException exception) {
+      Log.e(TAG, "Failed to set next player source, episode " + predicted, exception);
+      releaseNextPlayer();
+    }
+  }
+
+  /**
+   * Lets MediaPlayer start next episode right after the current one without waiting for
+   * completion callback. Not used in fix skip ending mode, as completion is ignored there once.
+   */
+  private void chainNext() {
+    if (nextPrepared && !nextChained && player != null && !preparing && !state.isStopped()
+        && !Preferences.getInstance().fixSkipEnding()) {
+      player.setNextMediaPlayer(nextPlayer);
+      nextChained = true;
+    }
+  }
+
+  /**
+   * Makes prepared next player current one
+   */
+  private void swapToNext() {
+    Log.d(TAG, "Switching to preloaded episode " + nextId + (nextChained ? ", chained" : ""));
+    flushPosition();
+    MediaPlayer previous = player;
+    boolean started = nextChained && nextPlayer.isPlaying();
+    player = nextPlayer;
+    if (!started) {
+      player.start();
+    }
+    if (previous != null) {
+      previous.release();
+    }
+    stopStreaming(currentId);
+    currentId = nextId;
+    length = nextLength;
+    startSeek = nextStartSeek;
+    seekTable = nextSeekTable;
+    sourceFile = nextSourceFile;
+    sourceBase = nextSourceBase;
+    nextPlayer = null;
+    releaseNextPlayer();
+    DownloadScheduler.setCurrentEpisode(this, currentId);
+    fixingEndingSkip = false;
+    preparing = false;
+    pendingSeek = -1;
+    state = State.PLAYING;
+    progress = sourceBase + player.getCurrentPosition();
+    recordTransition(started ? TransitionType.CHAINED : TransitionType.PRELOADED);
+    eventLoop.post(CallbackType.STATE);
+    eventLoop.post(CallbackType.PROGRESS);
+    MediaButtonReceiver.setService(this);
+    noisyAudioReceiver.register();
+    preloadNext();
+  }
+
+  /**
+   * Called on every progress update while playing
+   */
+  private void savePosition() {
+    if (positionJournal == null) {
+      ContentValues values = new ContentValues(3);
+      values.put(Provider.K_EPLAYED, progress);
+      values.put(Provider.K_ELENGTH, length);
+      values.put(Provider.K_EPTSTAMP, System.currentTimeMillis());
+      getContentResolver().update(
+          Provider.getUri(Provider.T_EPISODE, currentId), values, null, null);
+    } else {
+      positionJournal.checkpoint(currentId, progress, length);
+      // lazy flushes keep progress shown in episode lists moving
+      if (SystemClock.elapsedRealtime() - lastPositionFlush >= PositionJournal.FLUSH_INTERVAL_MS) {
+        flushPosition();
+      }
+    }
+  }
+
+  /**
+   * Writes position of current episode and all journaled checkpoints to provider. Called before
+   * playback is paused, stopped or switched to another episode.
+   */
+  private void flushPosition() {
+    if (positionJournal == null) {
+      return;
+    }
+    if (!state.isStopped() && currentId != 0) {
+      positionJournal.checkpoint(currentId, readProgress(), length);
+    }
+    positionJournal.flush(getContentResolver());
+    lastPositionFlush = SystemClock.elapsedRealtime();
+  }
+
+  private void recordTransition(@NonNull TransitionType type) {
+    if (transitionStart != 0) {
+      long latency = SystemClock.elapsedRealtime() - transitionStart;
+      transitionStart = 0;
+      transitionStats.add(type, latency);
+      Log.i(TAG, "Transition to " + currentId + " took " + latency + "ms (" + type + ")");
+    }
+  }
+
+  private static int getStartSeek(int played, int length) {
+    // if starting at the end of ep (with tolerance), start from the beginning
+    return played > length - RESTART_THRESHOLD_MS ? 0 : played;
+  }
+
+  @Override
+  protected void dump(FileDescriptor fd, final PrintWriter writer, String[] args) {
+    callOnLoop(new Callable<Void>() {
+      @Override
+      public Void call() {
+        writer.println(metrics.getReport());
+        writer.println(transitionStats);
+        writer.println("Next episode " + nextId + ", prepared " + nextPrepared + ", chained "
+                           + nextChained);
+        return null;
+      }
+    });
   }
 
   /**
@@ -473,13 +1074,24 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
    *
    * @return false if playback wasn't initialized before call
    */
-  public synchronized boolean stop() {
+  public boolean stop() {
+    return callOnLoop(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return stopOnLoop();
+      }
+    });
+  }
+
+  private boolean stopOnLoop() {
     Log.d(TAG, "Stopping playback");
+    flushPosition();
+    transitionStart = 0;
     MediaButtonReceiver.setService(null);
     noisyAudioReceiver.unregister();
     releasePlayer();
     state = State.STOPPED;
-    callbackThread.post(CallbackType.STATE);
+    eventLoop.post(CallbackType.STATE);
     stopForeground(true);
     Preferences.getInstance().setPlayerForeground(false);
     return true;
@@ -489,12 +1101,22 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
    * @return false if pause isn't possible: e.g. playback initialization in progress. True if
    * successfully paused or playback was already in pause state.
    */
-  public synchronized boolean pause() {
+  public boolean pause() {
+    return callOnLoop(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return pauseOnLoop();
+      }
+    });
+  }
+
+  private boolean pauseOnLoop() {
     if (state == State.PLAYING && !preparing) {
       Log.d(TAG, "Pausing playback " + currentId);
       player.pause();
+      flushPosition();
       state = State.PAUSED;
-      callbackThread.post(CallbackType.STATE);
+      eventLoop.post(CallbackType.STATE);
       return true;
     } else {
       Log.e(TAG, "pause wrong state " + state + " " + preparing);
@@ -505,12 +1127,23 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
   /**
    * @return false if playback was not in paused stated before call
    */
-  public synchronized boolean resume() {
+  public boolean resume() {
+    return callOnLoop(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return resumeOnLoop();
+      }
+    });
+  }
+
+  private boolean resumeOnLoop() {
     if (state == State.PAUSED) {
       Log.d(TAG, "Resuming playback " + currentId);
-      player.start();
+      if (!preparing) {
+        player.start(); // otherwise it's started once prepared
+      }
       state = State.PLAYING;
-      callbackThread.post(CallbackType.STATE);
+      eventLoop.post(CallbackType.STATE);
       return true;
     } else {
       Log.e(TAG, "resume wrong state " + state + " " + preparing);
@@ -526,31 +1159,97 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
    * @param id of episode
    * @return false if something wrong with media (not downloaded yet, sdcard ejected, wrong format)
    */
-  public synchronized boolean playEpisode(long id) {
+  public boolean playEpisode(final long id) {
+    return callOnLoop(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return playEpisodeOnLoop(id);
+      }
+    });
+  }
+
+  private boolean playEpisodeOnLoop(long id) {
+    metrics.launchStarted();
     AudioManager am = (AudioManager) getSystemService(AUDIO_SERVICE);
     int res = am.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
     if (res == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
       focusMode = AudioManager.AUDIOFOCUS_GAIN;
+      metrics.phaseDone(PlaybackMetrics.Phase.AUDIO_FOCUS);
     } else {
+      metrics.launchFailed();
       return false;
     }
 
+    if (id == nextId && nextPrepared) {
+      swapToNext();
+      metrics.launchDone(); // preloaded episode is already prepared and seeked
+      return true;
+    }
+
+    flushPosition();
     fixingEndingSkip = false;
+    stopStreaming(currentId);
     currentId = id;
+    DownloadScheduler.setCurrentEpisode(this, currentId);
     progress = 0;
     state = State.STOPPED_ERROR;
+    seekTable = null;
+    sourceFile = null;
+    sourceBase = 0;
     ContentResolver resolver = getContentResolver();
 
     initPlayer();
 
+    Cursor cursor = resolver.query(
+        Provider.getUri(Provider.T_EPISODE, id),
+        new String[]{Provider.K_EPLAYED, Provider.K_ELENGTH, Provider.K_EDFIN, Provider.K_EDID,
+                     Provider.K_EAURL},
+        null, null, null);
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null from query");
+    }
+    if (!cursor.moveToFirst()) {
+      Log.e(TAG, "Failed to play ep " + id + ": it's absent in db");
+      metrics.launchFailed();
+      cursor.close();
+      eventLoop.post(CallbackType.STATE);
+      return false;
+    }
+    int downloaded = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_EDFIN));
+    // check if episode was previously played to some position
+    int savedLength = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_ELENGTH));
+    int savedSeek = getStartSeek(
+        cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_EPLAYED)), savedLength);
+    metrics.phaseDone(PlaybackMetrics.Phase.QUERY);
+
     synchronized (Preferences.getInstance()) {
       Storage storage = Preferences.getInstance().getStorage();
       File source = storage == null ? null : new File(storage.getPodcastDir(), Long.toString(id));
-      if (source != null && source.exists()) {
+      if (downloaded != Provider.EDFIN_COMPLETE && storage != null
+          && Preferences.getInstance().getStreaming()) {
+        Uri uri = getStreamUri(
+            id, cursor.getString(cursor.getColumnIndexOrThrow(Provider.K_EAURL)),
+            cursor.getLong(cursor.getColumnIndexOrThrow(Provider.K_EDID)), downloaded, storage);
+        if (uri != null) {
+          Log.d(TAG, "Launching streaming playback of " + id + " via " + uri);
+          try {
+            player.setDataSource(this, uri);
+            state = State.PLAYING;
+            WidgetHelper.getInstance();
+          } catch (IOException exception) {
+            Log.e(TAG, "set source produced an exception, playback stopped: ", exception);
+          }
+        }
+      } else if (source != null && source.exists()) {
         if (storage.isAvailableRead()) {
           Log.d(TAG, "Launching playback of " + source.getAbsolutePath());
           try {
-            player.setDataSource(this, Uri.fromFile(source));
+            seekTable = Mp3SeekTable.load(Mp3SeekTable.getFile(storage.getPodcastDir(), id));
+            sourceFile = source;
+            sourceBase = openSource(player, source, seekTable, savedSeek);
+            if (seekTable != null) {
+              savedSeek = 0; // source is opened right at start position
+            }
             state = State.PLAYING;
             WidgetHelper.getInstance(); // ensure widget helper is up to handle player notification
           } catch (IOException exception) {
@@ -570,28 +1269,20 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
     }
 
     if (state == State.PLAYING) {
+      metrics.phaseDone(PlaybackMetrics.Phase.SET_SOURCE);
       preparing = true;
+      pendingSeek = -1;
       player.prepareAsync();
-      // while playback is being prepared, check if episode was previously played to some position
-      Cursor cursor = resolver.query(Provider.getUri(Provider.T_EPISODE, id),
-                                new String[]{Provider.K_EPLAYED, Provider.K_ELENGTH},
-                                null, null, null);
-      if (cursor == null) {
-        throw new AssertionError("Unexpectedly got null from query");
-      }
-      if (cursor.moveToFirst()) {
-        startSeek = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_EPLAYED));
-        length = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_ELENGTH));
-        if (startSeek > length - 5000) { // if starting at the end of ep (with tolerance)
-          startSeek = 0;
-        }
-        progress = startSeek;
-      }
-
-      cursor.close();
+      length = savedLength;
+      startSeek = savedSeek;
+      progress = sourceBase + startSeek;
+    } else {
+      metrics.launchFailed();
+      transitionStart = 0;
     }
-    callbackThread.post(CallbackType.STATE);
-    callbackThread.post(CallbackType.PROGRESS);
+    cursor.close();
+    eventLoop.post(CallbackType.STATE);
+    eventLoop.post(CallbackType.PROGRESS);
 
     MediaButtonReceiver.setService(this);
     noisyAudioReceiver.register();
@@ -600,56 +1291,67 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
   }
 
   /**
-   * @return next ep. id according to complete action preference or 0 if there are no more eps
+   * Makes sure episode is being downloaded by built-in engine, which allows reading partially
+   * downloaded file
+   *
+   * @return uri to stream episode from or null if download couldn't be started
    */
-  private static long getNext(@NonNull Cursor playableEpisodes, long currentId, boolean first) {
-    long result = 0;
-
-    if (playableEpisodes.getCount() > 0) {
-      int idColumn = playableEpisodes.getColumnIndexOrThrow(Provider.K_ID);
-      if (currentId != 0 && !first) {
-        long prevId = 0;
-        playableEpisodes.moveToFirst();
-        do {
-          if (prevId == currentId) {
-            result = playableEpisodes.getLong(idColumn);
-            break;
-          }
-          prevId = playableEpisodes.getLong(idColumn);
-        } while (playableEpisodes.moveToNext());
+  @Nullable
+  private Uri getStreamUri(long id, @NonNull String url, long downloadId, int downloaded,
+                           @NonNull Storage storage) {
+    if (downloaded == Provider.EDFIN_MOVING) {
+      Log.e(TAG, "Can't stream " + id + ", it's being moved from temporary storage");
+      return null;
+    }
+    if (!storage.isAvailableRw()) {
+      Log.e(TAG, "Can't stream " + id + ", storage is not writable: " + storage);
+      return null;
+    }
+    // processed episodes are already downloaded by built-in engine, just read them
+    if (downloaded != Provider.EDFIN_PROCESSING && !HttpDownloadService.isRunning(id)) {
+      if (downloadId != 0 && !HttpDownloadService.isBuiltInDownload(downloadId)) {
+        // DownloadManager doesn't let reading files it's writing. Switch to built-in engine
+        DownloadReceiver.stopDownloads(Provider.K_ID + " == " + id);
       }
-
-      if (result == 0) {
-        playableEpisodes.moveToFirst();
-        do {
-          long id = playableEpisodes.getLong(idColumn);
-          if (id != currentId) {
-            result = id;
-            break;
-          }
-        } while (playableEpisodes.moveToNext());
+      if (!DownloadReceiver.downloadBuiltIn(this, url, id, storage)) {
+        return null;
       }
     }
-
-    return result;
+    if (streamingProxy == null) {
+      try {
+        streamingProxy = new StreamingProxy(this);
+      } catch (IOException exception) {
+        Log.e(TAG, "Failed to start streaming proxy", exception);
+        return null;
+      }
+    }
+    return streamingProxy.getUri(id, new File(storage.getPodcastDir(), Long.toString(id)));
   }
 
   /**
    * @return false if no more playable episodes available or playback launch caused an error,
    * otherwise true
    */
-  public synchronized boolean playNext() {
+  public boolean playNext() {
+    return callOnLoop(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return playNextOnLoop();
+      }
+    });
+  }
+
+  private boolean playNextOnLoop() {
     Preferences.CompleteAction completeAction = Preferences.getInstance().getCompleteAction();
 
-    if (playableEpisodes == null) {
-      Log.e(TAG, "Skip playNext, episodes cursor isn't loaded yet");
+    if (!playableEpisodes.isLoaded()) {
+      Log.e(TAG, "Skip playNext, playlist isn't loaded yet");
       return false;
     }
 
-    // run getNext before deletion, cause we need to loop over playlist to find episode following
-    // the current one
-    long nextId = getNext(
-        playableEpisodes, currentId, completeAction == Preferences.CompleteAction.PLAY_FIRST
+    // run getNext before deletion, cause we need current episode position to find the following one
+    long nextId = playableEpisodes.getNext(
+        currentId, completeAction == Preferences.CompleteAction.PLAY_FIRST
             || completeAction == Preferences.CompleteAction.DELETE_PLAY_FIRST);
 
     if (completeAction == Preferences.CompleteAction.DELETE_PLAY_FIRST
@@ -663,51 +1365,75 @@ public class PlayerService extends DebuggableService implements MediaPlayer.OnSe
 
     if (nextId == 0 || completeAction == Preferences.CompleteAction.DELETE_DO_NOTHING) {
       Log.i(TAG, "No more playable episodes");
+      transitionStart = 0;
       releasePlayer();
       state = State.STOPPED_EMPTY;
       currentId = nextId;
+      DownloadScheduler.setCurrentEpisode(this, currentId);
       progress = 0;
-      callbackThread.post(CallbackType.STATE);
-      callbackThread.post(CallbackType.PROGRESS);
+      eventLoop.post(CallbackType.STATE);
+      eventLoop.post(CallbackType.PROGRESS);
       return false;
     } else {
-      return playEpisode(nextId);
+      return playEpisodeOnLoop(nextId);
     }
   }
 
-  public synchronized void playPauseResume() {
+  public void playPauseResume() {
+    callOnLoop(new Callable<Void>() {
+      @Override
+      public Void call() {
+        playPauseResumeOnLoop();
+        return null;
+      }
+    });
+  }
+
+  private void playPauseResumeOnLoop() {
     switch (state) {
       case STOPPED:
       case STOPPED_ERROR:
       case STOPPED_EMPTY:
         if (currentId != 0) {
-          playEpisode(currentId);
+          playEpisodeOnLoop(currentId);
         } else {
-          playNext();
+          playNextOnLoop();
         }
         break;
       case PLAYING:
-        pause();
+        pauseOnLoop();
         break;
       case PAUSED:
-        resume();
+        resumeOnLoop();
         break;
       default:
         throw new AssertionError("Unknown state");
     }
   }
 
+  @NonNull
+  private MediaPlayer createPlayer() {
+    MediaPlayer result = new MediaPlayer();
+    result.setOnPreparedListener(this);
+    result.setOnCompletionListener(this);
+    result.setOnErrorListener(this);
+    result.setOnSeekCompleteListener(this);
+    result.setOnInfoListener(this);
+    result.setVolume(audioVolume, audioVolume);
+    return result;
+  }
+
   private void initPlayer() {
     if (player == null) {
-      player = new MediaPlayer();
-      player.setOnPreparedListener(this);
-      player.setOnCompletionListener(this);
-      player.setOnErrorListener(this);
-      player.setOnSeekCompleteListener(this);
-      player.setVolume(audioVolume, audioVolume);
+      player = createPlayer();
     } else {
+      if (nextChained) {
+        player.setNextMediaPlayer(null);
+        nextChained = false;
+      }
       player.reset();
     }
+    metrics.stall(false);
   }
 
   public void updateNotification(@NonNull Notification notification) {
@@ -4,7 +4,6 @@ package com.einmalfel.podlisten;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.RecyclerView;
@@ -60,6 +59,7 @@ public class PlaylistFragment extends DebuggableFragment implements
     rv.setItemAnimator(new DefaultItemAnimator());
     activity.getSupportLoaderManager().initLoader(activityPage.ordinal(), null, this);
     rv.setAdapter(adapter);
+    ImagePrefetcher.attach(rv, adapter);
 
     return layout;
   }
@@ -75,8 +75,9 @@ public class PlaylistFragment extends DebuggableFragment implements
     // episode button in playlist is enabled in two cases:
     // - episode is downloaded, button is used for play/pause
     // - episode isn't downloaded, isn't being download (downloadId == 0), button stats download
+    // With streaming enabled button is always used for play/pause
 
-    if (downloaded != Provider.EDFIN_COMPLETE) {
+    if (downloaded != Provider.EDFIN_COMPLETE && !Preferences.getInstance().getStreaming()) {
       PodListenApp.getContext().sendBroadcast(DownloadReceiver.getDownloadEpisodeIntent(
           PodListenApp.getContext(), audioUrl, title, id));
     } else {
@@ -97,12 +98,13 @@ public class PlaylistFragment extends DebuggableFragment implements
 
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new CursorLoader(activity,
-                            Provider.episodeJoinPodcastUri,
-                            EpisodeListAdapter.REQUIRED_DB_COLUMNS,
-                            Provider.K_ESTATE + " = " + Provider.ESTATE_IN_PLAYLIST,
-                            null,
-                            Preferences.getInstance().getSortingMode().toSql());
+    return new DiffCursorLoader(activity,
+                                Provider.episodeJoinPodcastUri,
+                                EpisodeListAdapter.REQUIRED_DB_COLUMNS,
+                                Provider.K_ESTATE + " = " + Provider.ESTATE_IN_PLAYLIST,
+                                null,
+                                Preferences.getInstance().getSortingMode().toSql(),
+                                DiffCursorLoader.EPISODE_SIGNATURE_COLUMNS);
   }
 
   @Override
@@ -0,0 +1,284 @@
+package com.einmalfel.podlisten;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory list of playable episodes (those in playlist and downloaded) ordered by current
+ * sorting mode, episodes with equal sorting keys are ordered by id.
+ * Index is kept up to date by observing provider: on change of a single episode only that episode
+ * is re-queried and moved within the index, while bulk changes cause full reload. Changes are
+ * processed on index own thread.
+ */
+class PlaylistIndex {
+  private static final String TAG = "PLI";
+  // if more episodes changed at once, reloading whole index is cheaper than per-episode queries
+  private static final int RELOAD_THRESHOLD = 32;
+  private static final String PLAYABLE_SELECTION = Provider.K_ESTATE + " == "
+      + Provider.ESTATE_IN_PLAYLIST + " AND " + Provider.K_EDFIN + " == " + Provider.EDFIN_COMPLETE;
+
+  interface Listener {
+    /**
+     * Called from index thread after order or set of playable episodes changed
+     */
+    void onPlaylistChanged();
+  }
+
+  private final ContentResolver resolver;
+  private final Listener listener;
+  private final HandlerThread thread = new HandlerThread("PlaylistIndex");
+  private final Handler handler;
+  private final ContentObserver observer;
+
+  // fields below are guarded by this
+  private long[] ids = new long[16];
+  private long[] keys = new long[16];
+  private int size = 0;
+  private final LongSparseArray<Integer> positions = new LongSparseArray<>();
+  private Preferences.SortingMode sortingMode;
+  private boolean loaded = false;
+
+  // accessed from index thread only
+  private final LongSparseArray<Boolean> pendingIds = new LongSparseArray<>();
+  private boolean pendingReload = false;
+
+  private final Runnable processChanges = new Runnable() {
+    @Override
+    public void run() {
+      boolean changed;
+      if (pendingReload || pendingIds.size() > RELOAD_THRESHOLD
+          || Preferences.getInstance().getSortingMode() != getSortingMode()) {
+        reload();
+        changed = true;
+      } else {
+        changed = false;
+        for (int i = 0; i < pendingIds.size(); i++) {
+          changed |= update(pendingIds.keyAt(i));
+        }
+      }
+      pendingIds.clear();
+      pendingReload = false;
+      if (changed) {
+        listener.onPlaylistChanged();
+      }
+    }
+  };
+
+  PlaylistIndex(@NonNull Context context, @NonNull Listener listener) {
+    this.resolver = context.getContentResolver();
+    this.listener = listener;
+    thread.start();
+    handler = new Handler(thread.getLooper());
+    observer = new ContentObserver(handler) {
+      @Override
+      public void onChange(boolean selfChange) {
+        onChange(selfChange, null);
+      }
+
+      @Override
+      public void onChange(boolean selfChange, Uri uri) {
+        long id = uri == null ? -1 : getEpisodeId(uri);
+        if (id < 0) {
+          pendingReload = true;
+        } else {
+          pendingIds.put(id, true);
+        }
+        handler.removeCallbacks(processChanges);
+        handler.post(processChanges);
+      }
+    };
+  }
+
+  /**
+   * @return id of episode if uri points to single episode, -1 otherwise
+   */
+  private static long getEpisodeId(@NonNull Uri uri) {
+    List<String> segments = uri.getPathSegments();
+    if (segments.size() == 2 && Provider.T_EPISODE.equals(segments.get(0))) {
+      try {
+        return Long.parseLong(segments.get(1));
+      } catch (NumberFormatException ignored) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Starts observing provider, initial load is performed asynchronously
+   */
+  void start() {
+    resolver.registerContentObserver(Provider.episodeUri, true, observer);
+    handler.post(processChanges); // sorting mode isn't set yet, so index will be reloaded
+  }
+
+  void close() {
+    resolver.unregisterContentObserver(observer);
+    thread.quit();
+  }
+
+  synchronized boolean isLoaded() {
+    return loaded;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return first playable episode or 0 if there are no playable episodes
+   */
+  synchronized long getFirst() {
+    return size == 0 ? 0 : ids[0];
+  }
+
+  /**
+   * @param first return first episode instead of the one following currentId
+   * @return episode following currentId (or first one if currentId isn't playable or is the last
+   *     one), but not currentId itself. 0 if there are no such episodes
+   */
+  synchronized long getNext(long currentId, boolean first) {
+    if (!first) {
+      int position = positions.get(currentId, -1);
+      if (position >= 0 && position < size - 1) {
+        return ids[position + 1];
+      }
+    }
+    for (int i = 0; i < size && i < 2; i++) {
+      if (ids[i] != currentId) {
+        return ids[i];
+      }
+    }
+    return 0;
+  }
+
+  private synchronized Preferences.SortingMode getSortingMode() {
+    return sortingMode;
+  }
+
+  private void reload() {
+    Preferences.SortingMode mode = Preferences.getInstance().getSortingMode();
+    Cursor cursor = resolver.query(
+        Provider.episodeUri,
+        new String[]{Provider.K_ID, mode.getColumn()},
+        PLAYABLE_SELECTION,
+        null,
+        mode.toSql());
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null while querying provider");
+    }
+    synchronized (this) {
+      sortingMode = mode;
+      size = 0;
+      positions.clear();
+      ensureCapacity(cursor.getCount());
+      while (cursor.moveToNext()) {
+        ids[size] = cursor.getLong(0);
+        keys[size] = cursor.getLong(1);
+        positions.put(ids[size], size);
+        size++;
+      }
+      loaded = true;
+    }
+    cursor.close();
+    Log.d(TAG, "Reloaded " + size() + " episodes, sorting mode " + mode);
+  }
+
+  /**
+   * Re-queries episode and moves it to its current position in the index
+   *
+   * @return true if index was changed
+   */
+  private boolean update(long id) {
+    Cursor cursor = resolver.query(
+        Provider.getUri(Provider.T_EPISODE, id),
+        new String[]{getSortingMode().getColumn()},
+        PLAYABLE_SELECTION,
+        null,
+        null);
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null while querying provider");
+    }
+    boolean playable = cursor.moveToFirst();
+    long key = playable ? cursor.getLong(0) : 0;
+    cursor.close();
+
+    synchronized (this) {
+      int oldPosition = positions.get(id, -1);
+      if (oldPosition >= 0 && playable && keys[oldPosition] == key) {
+        return false; // fields episodes are ordered by didn't change
+      }
+      if (oldPosition >= 0) {
+        remove(oldPosition);
+      }
+      if (playable) {
+        insert(id, key);
+      }
+      return oldPosition >= 0 || playable;
+    }
+  }
+
+  private void remove(int position) {
+    positions.remove(ids[position]);
+    System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+    System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+    size--;
+    updatePositions(position);
+  }
+
+  private void insert(long id, long key) {
+    // binary search for the first entry which doesn't precede inserted one
+    int position = 0;
+    int end = size;
+    while (position < end) {
+      int middle = (position + end) >>> 1;
+      if (precedes(ids[middle], keys[middle], id, key)) {
+        position = middle + 1;
+      } else {
+        end = middle;
+      }
+    }
+    ensureCapacity(size + 1);
+    System.arraycopy(ids, position, ids, position + 1, size - position);
+    System.arraycopy(keys, position, keys, position + 1, size - position);
+    ids[position] = id;
+    keys[position] = key;
+    size++;
+    updatePositions(position);
+  }
+
+  /**
+   * @return true if episode 1 goes before episode 2 under current sorting mode
+   */
+  private boolean precedes(long id1, long key1, long id2, long key2) {
+    if (key1 != key2) {
+      return sortingMode.isDescending() ? key1 > key2 : key1 < key2;
+    }
+    return id1 < id2;
+  }
+
+  private void updatePositions(int from) {
+    for (int i = from; i < size; i++) {
+      positions.put(ids[i], i);
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (ids.length < capacity) {
+      int newLength = Math.max(capacity, ids.length * 2);
+      ids = Arrays.copyOf(ids, newLength);
+      keys = Arrays.copyOf(keys, newLength);
+    }
+  }
+}
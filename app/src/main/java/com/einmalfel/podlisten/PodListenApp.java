@@ -47,6 +47,14 @@ public class PodListenApp extends DebuggableApp implements Application.ActivityL
     super.onCreate();
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_UI_HIDDEN) {
+      DescriptionCache.getInstance().clear(); // parsed descriptions are only shown by visible lists
+    }
+  }
+
   @Override
   public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
 
@@ -57,7 +57,7 @@ public class PodcastHelper {
 
   @NonNull
   public static String shortDateFormat(long date) {
-    if (new Date().getTime() - date > 6 * 24 * 60 * 60 * 1000) {
+    if (System.currentTimeMillis() - date > 6 * 24 * 60 * 60 * 1000) {
       return formatYYYYMMDD.format(date);
     } else {
       return DateUtils.getRelativeTimeSpanString(date).toString();
@@ -66,23 +66,53 @@ public class PodcastHelper {
 
   @NonNull
   public static String shortFormatDurationMs(long milliseconds, @NonNull Context context) {
+    StringBuilder result = new StringBuilder();
+    appendDurationMs(result, milliseconds, context.getString(R.string.hour_abbreviation),
+                     context.getString(R.string.minute_abbreviation));
+    return result.toString();
+  }
+
+  /**
+   * Same as shortFormatDurationMs, but appends to builder instead of creating strings, which
+   * allows list elements to reuse their builders
+   */
+  static void appendDurationMs(@NonNull StringBuilder builder, long milliseconds,
+                               @NonNull String hourAbbreviation,
+                               @NonNull String minuteAbbreviation) {
     long minutes = milliseconds / 60 / 1000;
     long hours = minutes / 60;
-    return (hours > 0 ? hours + context.getString(R.string.hour_abbreviation) : "")
-        + minutes % 60 + context.getString(R.string.minute_abbreviation);
+    if (hours > 0) {
+      builder.append(hours).append(hourAbbreviation);
+    }
+    builder.append(minutes % 60).append(minuteAbbreviation);
+  }
+
+  public static String humanReadableByteCount(long bytes, boolean si) {
+    StringBuilder result = new StringBuilder();
+    appendByteCount(result, bytes, si);
+    return result.toString();
   }
 
   /**
-   * Based on http://stackoverflow.com/a/3758880/2015129
+   * Based on http://stackoverflow.com/a/3758880/2015129, but appends to builder and uses integer
+   * math instead of logarithms and String.format
    */
-  public static String humanReadableByteCount(long bytes, boolean si) {
+  static void appendByteCount(@NonNull StringBuilder builder, long bytes, boolean si) {
     int unit = si ? 1000 : 1024;
-    if (bytes < unit) {
-      return bytes + "B";
+    int exp = 0;
+    long value = bytes;
+    while (value >= unit && exp < 6) {
+      value /= unit;
+      exp++;
+    }
+    builder.append(value);
+    if (exp > 0) {
+      builder.append((si ? "kMGTPE" : "KMGTPE").charAt(exp - 1));
+      if (!si) {
+        builder.append('i');
+      }
     }
-    int exp = (int) (Math.log(bytes) / Math.log(unit));
-    String pre = (si ? "kMGTPE" : "KMGTPE").charAt(exp - 1) + (si ? "" : "i");
-    return String.format(Locale.getDefault(), "%d%sB", (int) (bytes / Math.pow(unit, exp)), pre);
+    builder.append('B');
   }
 
   public static class SubscriptionNotInsertedException extends Throwable {
@@ -6,7 +6,8 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-public class PodcastListAdapter extends BaseCursorRecyclerAdapter<PodcastViewHolder> {
+public class PodcastListAdapter extends BaseCursorRecyclerAdapter<PodcastViewHolder>
+    implements ImagePrefetcher.ImageSource {
   public interface ItemClickListener {
     /**
      * @return true if event was consumed
@@ -40,6 +41,16 @@ public class PodcastListAdapter extends BaseCursorRecyclerAdapter<PodcastViewHol
                 expandedElements.contains(id));
   }
 
+  @Override
+  public long getImageId(int position) {
+    return getItemId(position);
+  }
+
+  @Override
+  public long getFallbackImageId(int position) {
+    return 0;
+  }
+
   @Override
   public PodcastViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
     View view = LayoutInflater.from(parent.getContext())
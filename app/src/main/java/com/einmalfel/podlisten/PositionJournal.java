@@ -0,0 +1,131 @@
+package com.einmalfel.podlisten;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Memory-mapped ring of playback position checkpoints.
+ * Writing a checkpoint is a few stores into a mapped page, which is written back by the kernel
+ * lazily, so positions survive process death without a provider transaction per checkpoint.
+ * Checkpoints are moved to the provider by flush (on pause, stop, episode change, and every
+ * FLUSH_INTERVAL_MS during playback) and by replay on service start, if previous process died
+ * before flushing.
+ */
+class PositionJournal {
+  private static final String TAG = "PJN";
+  private static final String FILE_NAME = "position_journal";
+  // record: sequence number (0 marks empty or partially written record), episode id, position,
+  // length, wall clock time
+  private static final int RECORD_SIZE = 32;
+  private static final int RECORDS = 128;
+  static final long FLUSH_INTERVAL_MS = 10000;
+
+  private final MappedByteBuffer buffer;
+  private long sequence = 0;
+  private int next = 0;
+
+  /**
+   * @throws IOException if journal file couldn't be mapped
+   */
+  PositionJournal(@NonNull Context context) throws IOException {
+    File file = new File(context.getFilesDir(), FILE_NAME);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // mapping stays valid after channel is closed
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, RECORD_SIZE * RECORDS);
+    } finally {
+      try {
+        raf.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, "Failed to close stream", exception);
+      }
+    }
+    // continue after the latest record left by previous process, if any
+    for (int i = 0; i < RECORDS; i++) {
+      long recordSequence = buffer.getLong(i * RECORD_SIZE);
+      if (recordSequence > sequence) {
+        sequence = recordSequence;
+        next = (i + 1) % RECORDS;
+      }
+    }
+  }
+
+  /**
+   * Appends checkpoint to journal. Record is invalidated first and validated by its sequence
+   * number last, so that a record torn by process death is skipped on replay.
+   */
+  synchronized void checkpoint(long id, int position, int length) {
+    int offset = next * RECORD_SIZE;
+    buffer.putLong(offset, 0);
+    buffer.putLong(offset + 8, id);
+    buffer.putInt(offset + 16, position);
+    buffer.putInt(offset + 20, length);
+    buffer.putLong(offset + 24, System.currentTimeMillis());
+    buffer.putLong(offset, ++sequence);
+    next = (next + 1) % RECORDS;
+  }
+
+  /**
+   * Writes latest checkpoint of each episode to provider and clears journal
+   *
+   * @return number of episodes updated
+   */
+  synchronized int flush(@NonNull ContentResolver resolver) {
+    // latest record of each episode
+    LongSparseArray<Integer> latest = new LongSparseArray<>();
+    long[] sequences = new long[RECORDS];
+    for (int i = 0; i < RECORDS; i++) {
+      sequences[i] = buffer.getLong(i * RECORD_SIZE);
+      if (sequences[i] == 0) {
+        continue;
+      }
+      long id = buffer.getLong(i * RECORD_SIZE + 8);
+      Integer previous = latest.get(id);
+      if (previous == null || sequences[previous] < sequences[i]) {
+        latest.put(id, i);
+      }
+    }
+    if (latest.size() == 0) {
+      return 0;
+    }
+
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>(latest.size());
+    for (int i = 0; i < latest.size(); i++) {
+      int offset = latest.valueAt(i) * RECORD_SIZE;
+      operations.add(ContentProviderOperation
+                         .newUpdate(Provider.getUri(Provider.T_EPISODE, latest.keyAt(i)))
+                         .withValue(Provider.K_EPLAYED, buffer.getInt(offset + 16))
+                         .withValue(Provider.K_ELENGTH, buffer.getInt(offset + 20))
+                         .withValue(Provider.K_EPTSTAMP, buffer.getLong(offset + 24))
+                         .build());
+    }
+    try {
+      resolver.applyBatch(Provider.authorityBase, operations);
+    } catch (RemoteException | OperationApplicationException exception) {
+      Log.e(TAG, "Failed to flush playback positions", exception);
+      return 0; // keep records, next flush will retry
+    }
+    clear();
+    return operations.size();
+  }
+
+  private void clear() {
+    for (int i = 0; i < RECORDS; i++) {
+      buffer.putLong(i * RECORD_SIZE, 0);
+    }
+    next = 0;
+  }
+}
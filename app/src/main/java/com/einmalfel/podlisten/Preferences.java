@@ -30,6 +30,10 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
     CURRENT_ACTIVITY,
     PAUSE_ON_DISCONNECT,
     FIX_SKIP_ENDING,
+    DOWNLOAD_ENGINE,
+    DOWNLOAD_CONNECTIONS,
+    STORAGE_BUDGET,
+    STREAMING,
   }
 
   enum JumpInterval {
@@ -105,6 +109,62 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
     }
   }
 
+  enum DownloadEngine {
+    DOWNLOAD_MANAGER(R.string.download_engine_download_manager),
+    BUILT_IN(R.string.download_engine_built_in);
+
+    private final int stringId;
+
+    DownloadEngine(@StringRes int stringId) {
+      this.stringId = stringId;
+    }
+
+    @Override
+    public String toString() {
+      return PodListenApp.getContext().getString(stringId);
+    }
+  }
+
+  /**
+   * Number of parallel connections built-in download engine uses to load one big episode
+   */
+  enum DownloadConnectionsOption {
+    ONE, TWO, THREE, FOUR;
+
+    public int toInt() {
+      return ordinal() + 1;
+    }
+
+    @Override
+    public String toString() {
+      return Integer.toString(toInt());
+    }
+  }
+
+  enum StorageBudgetOption {
+    UNLIMITED(0), GB_1(1), GB_2(2), GB_4(4), GB_8(8), GB_16(16), GB_32(32);
+
+    private final int gigabytes;
+
+    StorageBudgetOption(int gigabytes) {
+      this.gigabytes = gigabytes;
+    }
+
+    /**
+     * @return budget in bytes, 0 means unlimited
+     */
+    public long toBytes() {
+      return gigabytes * 1024L * 1024L * 1024L;
+    }
+
+    @Override
+    public String toString() {
+      Context context = PodListenApp.getContext();
+      return gigabytes == 0 ? context.getString(R.string.storage_budget_unlimited)
+          : context.getString(R.string.storage_budget_gb, gigabytes);
+    }
+  }
+
   enum AutoDownloadMode {
     ALL_NEW(R.string.auto_download_all_new),
     PLAYLIST(R.string.auto_download_playlist),
@@ -149,24 +209,38 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
   enum SortingMode {
     OLDEST_FIRST, NEWEST_FIRST, BY_FEED, SHORTEST_FIRST, LONGEST_FIRST;
 
+    /**
+     * @return ORDER BY clause for episode table or its join with podcasts. Equal values are
+     * ordered by episode id, so that all queries sorted this way agree on episode order
+     */
     @NonNull
     public String toSql() {
+      return getColumn() + (isDescending() ? " DESC, " : " ASC, ") + Provider.K_EID + " ASC";
+    }
+
+    /**
+     * @return episode table column episodes are sorted by
+     */
+    @NonNull
+    public String getColumn() {
       switch (this) {
         case OLDEST_FIRST:
-          return Provider.K_EDATE + " ASC";
         case NEWEST_FIRST:
-          return Provider.K_EDATE + " DESC";
+          return Provider.K_EDATE;
         case BY_FEED:
-          return Provider.K_EPID + " ASC";
+          return Provider.K_EPID;
         case SHORTEST_FIRST:
-          return Provider.K_ELENGTH + " ASC";
         case LONGEST_FIRST:
-          return Provider.K_ELENGTH + " DESC";
+          return Provider.K_ELENGTH;
         default:
           throw new AssertionError("Unknown sorting mode");
       }
     }
 
+    public boolean isDescending() {
+      return this == NEWEST_FIRST || this == LONGEST_FIRST;
+    }
+
     @NonNull
     public SortingMode nextCyclic() {
       int newArrayId = ordinal() == values().length - 1 ? 0 : ordinal() + 1;
@@ -230,6 +304,10 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
   private static final DownloadNetwork DEFAULT_DOWNLOAD_NETWORK = DownloadNetwork.WIFI;
   private static final CompleteAction DEFAULT_COMPLETE_ACTION = CompleteAction.PLAY_NEXT;
   private static final JumpInterval DEFAULT_JUMP_INTERVAL = JumpInterval.THIRTY_SECONDS;
+  private static final DownloadEngine DEFAULT_DOWNLOAD_ENGINE = DownloadEngine.DOWNLOAD_MANAGER;
+  private static final DownloadConnectionsOption DEFAULT_DOWNLOAD_CONNECTIONS =
+      DownloadConnectionsOption.TWO;
+  private static final StorageBudgetOption DEFAULT_STORAGE_BUDGET = StorageBudgetOption.UNLIMITED;
   private static Preferences instance = null;
 
   // fields below could be changed from readPreference() only
@@ -239,6 +317,9 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
   private SortingMode sortingMode;
   private AutoDownloadMode autoDownloadMode;
   private DownloadNetwork downloadNetwork;
+  private DownloadEngine downloadEngine;
+  private DownloadConnectionsOption downloadConnections;
+  private StorageBudgetOption storageBudget;
   private CompleteAction completeAction;
   private JumpInterval jumpInterval;
   private boolean autoDownloadAcOnly;
@@ -247,6 +328,7 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
   private String currentActivity; // current activity class name, for services in separate process
   private boolean pauseOnDisconnect;
   private boolean fixSkipEnding;
+  private boolean streaming;
 
   private SharedPreferences sharedPrefs;
 
@@ -334,12 +416,41 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
           context.sendBroadcast(DownloadReceiver.getUpdateQueueIntent(context));
         }
         break;
+      case DOWNLOAD_ENGINE:
+        DownloadEngine newEngine = readEnum(Key.DOWNLOAD_ENGINE, DEFAULT_DOWNLOAD_ENGINE);
+        if (downloadEngine != newEngine) {
+          // stop downloads while old engine is still selected, so that they are routed to it
+          if (downloadEngine != null) {
+            DownloadReceiver.stopDownloads(null);
+          }
+          downloadEngine = newEngine;
+          context.sendBroadcast(DownloadReceiver.getUpdateQueueIntent(context));
+        }
+        break;
+      case DOWNLOAD_CONNECTIONS:
+        downloadConnections = readEnum(Key.DOWNLOAD_CONNECTIONS, DEFAULT_DOWNLOAD_CONNECTIONS);
+        break;
+      case STORAGE_BUDGET:
+        StorageBudgetOption newBudget = readEnum(Key.STORAGE_BUDGET, DEFAULT_STORAGE_BUDGET);
+        if (newBudget != storageBudget) {
+          // initial read isn't a change: quota is checked after each download anyway
+          boolean changed = storageBudget != null;
+          storageBudget = newBudget;
+          if (changed) {
+            BackgroundOperations.startEnforceQuota(context);
+            context.sendBroadcast(DownloadReceiver.getUpdateQueueIntent(context));
+          }
+        }
+        break;
       case PAUSE_ON_DISCONNECT:
         pauseOnDisconnect = sharedPrefs.getBoolean(Key.PAUSE_ON_DISCONNECT.toString(), true);
         break;
       case FIX_SKIP_ENDING:
         fixSkipEnding = sharedPrefs.getBoolean(Key.FIX_SKIP_ENDING.toString(), false);
         break;
+      case STREAMING:
+        streaming = sharedPrefs.getBoolean(Key.STREAMING.toString(), false);
+        break;
       case AUTO_DOWNLOAD_AC:
         boolean newAutoDownloadAc = sharedPrefs.getBoolean(Key.AUTO_DOWNLOAD_AC.toString(), false);
         if (newAutoDownloadAc != autoDownloadAcOnly) {
@@ -372,7 +483,15 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
         }
         break;
       case SORTING_MODE:
-        sortingMode = readEnum(Key.SORTING_MODE, DEFAULT_SORTING_MODE);
+        SortingMode newSortingMode = readEnum(Key.SORTING_MODE, DEFAULT_SORTING_MODE);
+        if (newSortingMode != sortingMode) {
+          // download priorities follow playlist order, no need to requeue on initial read
+          boolean changed = sortingMode != null;
+          sortingMode = newSortingMode;
+          if (changed) {
+            context.sendBroadcast(DownloadReceiver.getUpdateQueueIntent(context));
+          }
+        }
         break;
       case MAX_DOWNLOADS:
         MaxDownloadsOption newMaxDl = readEnum(Key.MAX_DOWNLOADS, DEFAULT_MAX_DOWNLOADS);
@@ -493,6 +612,21 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
     return downloadNetwork;
   }
 
+  @NonNull
+  public DownloadEngine getDownloadEngine() {
+    return downloadEngine;
+  }
+
+  @NonNull
+  public DownloadConnectionsOption getDownloadConnections() {
+    return downloadConnections;
+  }
+
+  @NonNull
+  public StorageBudgetOption getStorageBudget() {
+    return storageBudget;
+  }
+
   @NonNull
   public CompleteAction getCompleteAction() {
     return completeAction;
@@ -507,6 +641,10 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
     return pauseOnDisconnect;
   }
 
+  public boolean getStreaming() {
+    return streaming;
+  }
+
   public boolean fixSkipEnding() {
     return fixSkipEnding;
   }
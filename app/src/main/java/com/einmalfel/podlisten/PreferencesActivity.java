@@ -117,12 +117,31 @@ public class PreferencesActivity extends AppCompatActivity {
           }
         }
         break;
+      case "com.einmalfel.podlisten.PLAYBACK_STATS":
+        showPlaybackStats();
+        break;
       default:
         Log.e(TAG, "Unexpected intent received: " + intent);
         break;
     }
   }
 
+  private void showPlaybackStats() {
+    new AlertDialog.Builder(this)
+        .setTitle(R.string.preferences_playback_stats_title)
+        .setMessage(PlaybackMetrics.getInstance().getReport())
+        .setNegativeButton(R.string.opml_dialog_done, null)
+        .setNeutralButton(
+            R.string.playback_stats_dialog_reset,
+            new DialogInterface.OnClickListener() {
+              @Override
+              public void onClick(DialogInterface dialog, int which) {
+                PlaybackMetrics.getInstance().reset();
+              }
+            })
+        .show();
+  }
+
   private boolean exportToOpml(File file) {
     XmlSerializer serializer = Xml.newSerializer();
     try {
@@ -7,6 +7,7 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v7.preference.ListPreference;
 import android.support.v7.preference.Preference;
+import android.support.v7.preference.PreferenceCategory;
 import android.support.v7.preference.PreferenceFragmentCompat;
 
 import java.util.Set;
@@ -62,6 +63,18 @@ public class PreferencesFragment extends PreferenceFragmentCompat {
         Preferences.Key.DOWNLOAD_NETWORK.toString());
     bindEnumToList(downloadNetworkListPref, Preferences.DownloadNetwork.class);
 
+    ListPreference downloadEngineListPref = (ListPreference) findPreference(
+        Preferences.Key.DOWNLOAD_ENGINE.toString());
+    bindEnumToList(downloadEngineListPref, Preferences.DownloadEngine.class);
+
+    ListPreference downloadConnectionsListPref = (ListPreference) findPreference(
+        Preferences.Key.DOWNLOAD_CONNECTIONS.toString());
+    bindEnumToList(downloadConnectionsListPref, Preferences.DownloadConnectionsOption.class);
+
+    ListPreference storageBudgetListPref = (ListPreference) findPreference(
+        Preferences.Key.STORAGE_BUDGET.toString());
+    bindEnumToList(storageBudgetListPref, Preferences.StorageBudgetOption.class);
+
     ListPreference onCompleteListPref = (ListPreference) findPreference(
         Preferences.Key.COMPLETE_ACTION.toString());
     bindEnumToList(onCompleteListPref, Preferences.CompleteAction.class);
@@ -88,5 +101,11 @@ public class PreferencesFragment extends PreferenceFragmentCompat {
     if (cursor != null) {
       cursor.close();
     }
+
+    // playback stats screen is a debugging tool
+    if (!BuildConfig.DEBUG) {
+      PreferenceCategory otherCategory = (PreferenceCategory) findPreference("OTHER");
+      otherCategory.removePreference(findPreference("PLAYBACK_STATS"));
+    }
   }
 }
@@ -1,16 +1,25 @@
 package com.einmalfel.podlisten;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 
 public class Provider extends ContentProvider {
 
@@ -38,6 +47,7 @@ public class Provider extends ContentProvider {
   public static final String K_ESIZE = "episode_size"; //[Bytes]
   public static final String K_EERROR = "episode_error"; //string describing download/playback error
   public static final String K_EDTSTAMP = "episode_download_timestamp"; //[ms]
+  public static final String K_EPTSTAMP = "episode_play_timestamp"; //[ms], when ep was last played
   public static final String K_PNAME = "podcast_name";
   public static final String K_PDESCR = "podcast_description";
   public static final String K_PSDESCR = "podcast_short_description";
@@ -48,6 +58,8 @@ public class Provider extends ContentProvider {
   public static final String K_PTSTAMP = "podcast_timestamp";
   public static final String K_PATSTAMP = "podcast_add_timestamp";
   public static final String K_PERROR = "podcast_error"; // string describing feed refresh problem
+  public static final String K_SUSED = "storage_used"; // [Bytes] taken by downloaded episodes
+  public static final String K_SCOUNT = "storage_count"; // number of downloaded episodes
   public static final int ESTATE_NEW = 0;
   public static final int ESTATE_LEAVING = 1; // marked for deletion. Will be deleted in background
   public static final int ESTATE_IN_PLAYLIST = 2;
@@ -56,6 +68,8 @@ public class Provider extends ContentProvider {
   public static final int EDFIN_MOVING = 101; // ep. will be moved from primary to current storage
   public static final int EDFIN_PROCESSING = 102; // awaiting processing
   public static final int EDFIN_ERROR = 103;
+  // media deleted to fit storage budget. Isn't downloaded again until it's about to be played
+  public static final int EDFIN_EVICTED = 104;
   public static final int PSTATE_NEW = 0;
   public static final int PSTATE_SEEN_ONCE = 1;
   public static final int PSTATE_LAST_REFRESH_FAILED = 2;
@@ -66,12 +80,23 @@ public class Provider extends ContentProvider {
   public static final Uri podcastUri = Uri.parse(baseUriString + '/' + T_PODCAST);
   public static final Uri episodeUri = Uri.parse(baseUriString + '/' + T_EPISODE);
   public static final Uri episodeJoinPodcastUri = Uri.parse(baseUriString + '/' + T_E_JOIN_P);
+  // read-only single row with K_SUSED and K_SCOUNT columns
+  public static final Uri storageUsageUri = Uri.parse(baseUriString + "/storage_usage");
   public static final int SHORT_DESCR_LENGTH = 200;
+  // uri query parameter limiting number of rows returned, see getLimitedUri
+  public static final String QUERY_LIMIT = "limit";
+  // serves keyset-paginated queries of podcast episodes ordered by date, see getKeysetSelection
+  private static final String CREATE_HISTORY_INDEX = "CREATE INDEX IF NOT EXISTS episode_history"
+      + " ON " + T_EPISODE + " (" + K_EPID + ", " + K_EDATE + ", " + K_ID + ")";
+  public static final String KEYSET_ORDER = K_EDATE + " DESC, " + K_ID + " DESC";
   private static final String[] TABLES = {T_EPISODE, T_PODCAST, T_E_JOIN_P};
   private static final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
   private static final String TAG = "PLP";
+  private static final int STORAGE_USAGE_CODE = 100;
   private static volatile HelperV1 helper;
   private ContentResolver resolver;
+  // uris changed by batch running in current thread. Observers are notified once batch is committed
+  private final ThreadLocal<Set<Uri>> batchChanges = new ThreadLocal<>();
 
   public static Uri getUri(String table, Long id) {
     Uri.Builder builder = new Uri.Builder()
@@ -87,13 +112,13 @@ public class Provider extends ContentProvider {
   @Override
   public int delete(Uri uri, String selection, String[] selectionArgs) {
     int code = matcher.match(uri);
-    if (code == -1) {
+    if (code == -1 || code == STORAGE_USAGE_CODE) {
       Log.e(TAG, String.format(WRONG_QUERY_URI_MESSAGE, uri, code));
       return 0;
     }
     if (code >= TABLES.length) {
       code -= TABLES.length;
-      selection = "_ID = " + uri.getLastPathSegment();
+      selection = getItemSelection(selection, K_ID, uri);
     }
     if (code == TABLES.length - 1) {
       Log.e(TAG, "Trying to run delete on table join " + uri);
@@ -108,7 +133,7 @@ public class Provider extends ContentProvider {
       return 0;
     }
     if (result > 0) {
-      resolver.notifyChange(uri, null);
+      notifyChange(uri);
     }
     return result;
   }
@@ -137,7 +162,7 @@ public class Provider extends ContentProvider {
       return null;
     }
     Uri newUri = getUri(TABLES[code], id);
-    resolver.notifyChange(newUri, null);
+    notifyChange(newUri);
     return newUri;
   }
 
@@ -149,9 +174,30 @@ public class Provider extends ContentProvider {
       matcher.addURI(authorityBase, TABLES[i], i);
       matcher.addURI(authorityBase, TABLES[i] + "/#", TABLES.length + i);
     }
+    matcher.addURI(authorityBase, storageUsageUri.getLastPathSegment(), STORAGE_USAGE_CODE);
     return true;
   }
 
+  /**
+   * @return uri which makes query return at most limit rows
+   */
+  @NonNull
+  public static Uri getLimitedUri(@NonNull Uri uri, int limit) {
+    return uri.buildUpon().appendQueryParameter(QUERY_LIMIT, Integer.toString(limit)).build();
+  }
+
+  /**
+   * Selection for keyset pagination of episodes ordered by KEYSET_ORDER. Unlike OFFSET, it lets
+   * database seek to the page start using index instead of skipping all preceding rows.
+   *
+   * @return selection of episodes following episode with given date and id
+   */
+  @NonNull
+  public static String getKeysetSelection(long date, long id) {
+    return "(" + K_EDATE + " < " + date + " OR (" + K_EDATE + " == " + date + " AND " + K_ID
+        + " < " + id + "))";
+  }
+
   private static String joinStrings(String[] array, String separator) {
     StringBuilder builder = new StringBuilder();
     for (String s : array) {
@@ -163,6 +209,19 @@ public class Provider extends ContentProvider {
     return builder.toString();
   }
 
+  /**
+   * @return selection of item uri: caller's selection (if any) restricted to the item's id
+   */
+  @NonNull
+  private static String getItemSelection(@Nullable String selection, @NonNull String idColumn,
+                                         @NonNull Uri uri) {
+    StringBuilder builder = new StringBuilder();
+    if (selection != null) {
+      builder.append('(').append(selection).append(") AND ");
+    }
+    return builder.append(idColumn).append(" == ").append(uri.getLastPathSegment()).toString();
+  }
+
   @Override
   public Cursor query(Uri uri, String[] projection, String selection,
                       String[] selectionArgs, String sortOrder) {
@@ -171,16 +230,23 @@ public class Provider extends ContentProvider {
       Log.e(TAG, String.format(WRONG_QUERY_URI_MESSAGE, uri, code));
       return null;
     }
+    String limit = uri.getQueryParameter(QUERY_LIMIT);
+    if (limit != null && !limit.matches("\\d+")) {
+      Log.e(TAG, "Wrong query limit " + uri);
+      return null;
+    }
+    if (code == STORAGE_USAGE_CODE) {
+      Cursor result = helper.getReadableDatabase().rawQuery(
+          "SELECT TOTAL(" + K_ESIZE + ") AS " + K_SUSED + ", COUNT(*) AS " + K_SCOUNT
+              + " FROM " + T_EPISODE + " WHERE " + K_EDFIN + " == " + EDFIN_COMPLETE, null);
+      // episode uris are descendants of base uri, so this cursor is notified on episode changes
+      result.setNotificationUri(resolver, baseUri);
+      return result;
+    }
     if (code >= TABLES.length) {
       code -= TABLES.length;
-      StringBuilder builder = new StringBuilder();
-      if (selection != null) {
-        builder.append(selection).append(" AND ");
-      }
-      builder.append(TABLES[code].equals(T_E_JOIN_P) ? K_EID : K_ID)
-             .append(" == ")
-             .append(uri.getLastPathSegment());
-      selection = builder.toString();
+      selection = getItemSelection(
+          selection, TABLES[code].equals(T_E_JOIN_P) ? K_EID : K_ID, uri);
     }
     SQLiteDatabase db = helper.getReadableDatabase();
     if (code == TABLES.length - 1) {
@@ -194,12 +260,15 @@ public class Provider extends ContentProvider {
       if (sortOrder != null) {
         raw += " ORDER BY " + sortOrder;
       }
+      if (limit != null) {
+        raw += " LIMIT " + limit;
+      }
       Cursor result = db.rawQuery(raw, selectionArgs);
       result.setNotificationUri(resolver, baseUri);
       return result;
     }
     Cursor result = db.query(
-        TABLES[code], projection, selection, selectionArgs, null, null, sortOrder);
+        TABLES[code], projection, selection, selectionArgs, null, null, sortOrder, limit);
     result.setNotificationUri(resolver, uri);
     return result;
   }
@@ -209,13 +278,13 @@ public class Provider extends ContentProvider {
   public int update(Uri uri, ContentValues values, String selection,
                     String[] selectionArgs) {
     int code = matcher.match(uri);
-    if (code == -1) {
+    if (code == -1 || code == STORAGE_USAGE_CODE) {
       Log.e(TAG, String.format(WRONG_QUERY_URI_MESSAGE, uri, code));
       return 0;
     }
     if (code >= TABLES.length) {
       code -= TABLES.length;
-      selection = "_ID = " + uri.getLastPathSegment();
+      selection = getItemSelection(selection, K_ID, uri);
     }
     if (code == TABLES.length - 1) {
       Log.e(TAG, "Trying to run update on table join " + uri);
@@ -226,14 +295,48 @@ public class Provider extends ContentProvider {
     boolean timestampUpdate = values.size() == 1 && (
         values.containsKey(K_ETSTAMP) || values.containsKey(K_PTSTAMP));
     if (result > 0 && !timestampUpdate) {
-      resolver.notifyChange(uri, null);
+      notifyChange(uri);
     }
     return result;
   }
 
+  /**
+   * Applies all operations in a single transaction, observers are notified after commit only once
+   * per distinct uri
+   */
+  @NonNull
+  @Override
+  public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    Set<Uri> changes = new LinkedHashSet<>();
+    batchChanges.set(changes);
+    SQLiteDatabase db = helper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      ContentProviderResult[] result = super.applyBatch(operations);
+      db.setTransactionSuccessful();
+      return result;
+    } finally {
+      db.endTransaction();
+      batchChanges.set(null);
+      for (Uri uri : changes) {
+        resolver.notifyChange(uri, null);
+      }
+    }
+  }
+
+  private void notifyChange(@NonNull Uri uri) {
+    Set<Uri> changes = batchChanges.get();
+    if (changes == null) {
+      resolver.notifyChange(uri, null);
+    } else {
+      changes.add(uri);
+    }
+  }
+
   private static class HelperV1 extends SQLiteOpenHelper {
     HelperV1(Context context, String name) {
-      super(context, name, null, 1);
+      super(context, name, null, 3);
     }
 
     @Override
@@ -269,14 +372,21 @@ public class Provider extends ContentProvider {
                      + K_ELENGTH + " INTEGER,"
                      + K_ESIZE + " INTEGER,"
                      + K_EDTSTAMP + " INTEGER,"
+                     + K_EPTSTAMP + " INTEGER,"
                      + K_EPID + " INTEGER,"
                      + "FOREIGN KEY(" + K_EPID + ") REFERENCES " + T_PODCAST + '(' + K_ID + ')'
                      + ')');
+      db.execSQL(CREATE_HISTORY_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      throw new UnsupportedOperationException("Not yet implemented");
+      if (oldVersion < 2) {
+        db.execSQL("ALTER TABLE " + T_EPISODE + " ADD COLUMN " + K_EPTSTAMP + " INTEGER");
+      }
+      if (oldVersion < 3) {
+        db.execSQL(CREATE_HISTORY_INDEX);
+      }
     }
   }
 
@@ -0,0 +1,168 @@
+package com.einmalfel.podlisten;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps downloaded media within storage budget set in preferences.
+ * Eviction order: fully played episodes first, then partially played ones starting from the least
+ * recently played, then never played ones starting from the farthest from playback position.
+ * KEEP_NEXT episodes which are about to be played are never evicted.
+ * Evicted episodes get EDFIN_EVICTED state and aren't downloaded automatically until they get
+ * close to playback position, see DownloadScheduler.
+ */
+class StorageQuota {
+  private static final String TAG = "SQM";
+  static final int KEEP_NEXT = 3;
+  static final int EVICTION_BATCH = 10; // [episodes] evicted per pass
+  private static final int LOW_WATERMARK_PERCENT = 90; // evict until usage is below this
+  private static final int PLAYED_TOLERANCE_MS = 5000; // same as PlayerService restart threshold
+
+  private StorageQuota() {}
+
+  private static class Entry {
+    final long id;
+    final long size;
+    final int group; // 0 - fully played, 1 - partially played, 2 - never played
+    final long order; // order within a group, lower values are evicted earlier
+
+    Entry(long id, long size, int group, long order) {
+      this.id = id;
+      this.size = size;
+      this.group = group;
+      this.order = order;
+    }
+  }
+
+  /**
+   * @return bytes taken by downloaded episodes
+   */
+  static long getUsage(@NonNull Context context) {
+    Cursor cursor = context.getContentResolver().query(
+        Provider.storageUsageUri, new String[]{Provider.K_SUSED}, null, null, null);
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null while querying provider");
+    }
+    long result = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+    cursor.close();
+    return result;
+  }
+
+  static boolean isOverBudget(@NonNull Context context) {
+    long budget = Preferences.getInstance().getStorageBudget().toBytes();
+    return budget != 0 && getUsage(context) >= budget;
+  }
+
+  /**
+   * If usage exceeds budget, evicts episodes until usage is below low watermark, but no more than
+   * EVICTION_BATCH episodes per call
+   *
+   * @return number of evicted episodes. EVICTION_BATCH means another pass may be needed
+   */
+  static int evict(@NonNull Context context) {
+    long budget = Preferences.getInstance().getStorageBudget().toBytes();
+    if (budget == 0) {
+      return 0;
+    }
+    long usage = getUsage(context);
+    if (usage < budget) {
+      return 0;
+    }
+    long target = budget / 100 * LOW_WATERMARK_PERCENT;
+    Storage storage = Preferences.getInstance().getStorage();
+    if (storage == null || !storage.isAvailableRw()) {
+      Log.w(TAG, "Storage isn't writable, skipping eviction");
+      return 0;
+    }
+
+    List<Entry> entries = getEvictionOrder(context);
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>(EVICTION_BATCH);
+    for (Entry entry : entries) {
+      if (usage < target || operations.size() == EVICTION_BATCH) {
+        break;
+      }
+      File file = new File(storage.getPodcastDir(), Long.toString(entry.id));
+      if (file.exists() && !file.delete()) {
+        Log.e(TAG, "Failed to delete " + file);
+        continue;
+      }
+      File seekTableFile = Mp3SeekTable.getFile(storage.getPodcastDir(), entry.id);
+      if (seekTableFile.exists() && !seekTableFile.delete()) {
+        Log.e(TAG, "Failed to delete " + seekTableFile);
+      }
+      operations.add(ContentProviderOperation
+                         .newUpdate(Provider.getUri(Provider.T_EPISODE, entry.id))
+                         .withValue(Provider.K_EDFIN, Provider.EDFIN_EVICTED)
+                         .build());
+      usage -= entry.size;
+    }
+    if (operations.isEmpty()) {
+      Log.w(TAG, "Over budget, but nothing to evict. Usage " + usage + ", budget " + budget);
+      return 0;
+    }
+    try {
+      context.getContentResolver().applyBatch(Provider.authorityBase, operations);
+    } catch (RemoteException | OperationApplicationException exception) {
+      Log.e(TAG, "Failed to mark episodes evicted", exception);
+      return 0;
+    }
+    Log.i(TAG, "Evicted " + operations.size() + " episodes, usage " + usage + ", budget " + budget);
+    return operations.size();
+  }
+
+  @NonNull
+  private static List<Entry> getEvictionOrder(@NonNull Context context) {
+    LongSparseArray<Integer> ranks = DownloadScheduler.getPlaylistRanks(context);
+    Cursor cursor = context.getContentResolver().query(
+        Provider.episodeUri,
+        new String[]{Provider.K_ID, Provider.K_ESIZE, Provider.K_EPLAYED, Provider.K_ELENGTH,
+                     Provider.K_EPTSTAMP},
+        Provider.K_EDFIN + " == " + Provider.EDFIN_COMPLETE + " AND " + Provider.K_ESTATE
+            + " IN (" + Provider.ESTATE_NEW + ", " + Provider.ESTATE_IN_PLAYLIST + ")",
+        null,
+        null);
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null while querying provider");
+    }
+    List<Entry> result = new ArrayList<>(cursor.getCount());
+    while (cursor.moveToNext()) {
+      long id = cursor.getLong(0);
+      int rank = DownloadScheduler.getRank(ranks, id);
+      if (rank < KEEP_NEXT) {
+        continue;
+      }
+      long played = cursor.getLong(2);
+      long length = cursor.getLong(3);
+      if (length > 0 && played >= length - PLAYED_TOLERANCE_MS) {
+        result.add(new Entry(id, cursor.getLong(1), 0, cursor.getLong(4)));
+      } else if (played > 0) {
+        result.add(new Entry(id, cursor.getLong(1), 1, cursor.getLong(4)));
+      } else {
+        result.add(new Entry(id, cursor.getLong(1), 2, -rank));
+      }
+    }
+    cursor.close();
+    Collections.sort(result, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry lhs, Entry rhs) {
+        if (lhs.group != rhs.group) {
+          return lhs.group < rhs.group ? -1 : 1;
+        }
+        return lhs.order < rhs.order ? -1 : (lhs.order == rhs.order ? 0 : 1);
+      }
+    });
+    return result;
+  }
+}
@@ -0,0 +1,277 @@
+package com.einmalfel.podlisten;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loopback HTTP server which lets MediaPlayer play episode file while HttpDownload is still
+ * writing it. Requests for data which isn't downloaded yet block until it arrives, so playback
+ * starts as soon as the beginning of the file is loaded, and the downloaded file is used as is
+ * once download completes.
+ */
+class StreamingProxy implements Runnable {
+  private static final String TAG = "SPX";
+  private static final Charset HEADER_CHARSET = Charset.forName("US-ASCII");
+  private static final Pattern REQUEST_PATTERN = Pattern.compile("GET /(\\d+) HTTP/1\\.[01]");
+  private static final Pattern RANGE_PATTERN = Pattern.compile(
+      "Range:\\s*bytes=(\\d+)-(\\d*)", Pattern.CASE_INSENSITIVE);
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long START_TIMEOUT_MS = 30000; // wait for download to connect to server
+  private static final long DATA_TIMEOUT_MS = 1000; // data is awaited in slices of this length
+
+  private final ServerSocket serverSocket;
+  private final Thread acceptThread;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final ContentResolver resolver;
+  // files served, guarded by itself
+  private final LongSparseArray<File> files = new LongSparseArray<>();
+
+  StreamingProxy(@NonNull Context context) throws IOException {
+    resolver = context.getContentResolver();
+    serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+    acceptThread = new Thread(this, "StreamingProxy");
+    acceptThread.start();
+    Log.i(TAG, "Listening on port " + serverSocket.getLocalPort());
+  }
+
+  /**
+   * @return uri to pass to MediaPlayer to play file of given episode
+   */
+  @NonNull
+  Uri getUri(long id, @NonNull File file) {
+    synchronized (files) {
+      files.put(id, file);
+    }
+    return Uri.parse("http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + id);
+  }
+
+  /**
+   * Stops serving file of given episode, further requests for it will get 404
+   */
+  void remove(long id) {
+    synchronized (files) {
+      files.remove(id);
+    }
+  }
+
+  void close() {
+    try {
+      serverSocket.close();
+    } catch (IOException exception) {
+      Log.wtf(TAG, "Failed to close server socket", exception);
+    }
+    acceptThread.interrupt();
+    executor.shutdownNow();
+  }
+
+  @Override
+  public void run() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException exception) {
+        if (!serverSocket.isClosed()) {
+          Log.e(TAG, "Failed to accept connection", exception);
+        }
+        continue;
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            serve(socket);
+          } catch (SocketException exception) {
+            // MediaPlayer drops connections on seek and release
+            Log.d(TAG, "Connection closed by player: " + exception.getMessage());
+          } catch (IOException exception) {
+            Log.e(TAG, "Failed to serve request", exception);
+          } catch (InterruptedException ignored) {
+            Log.d(TAG, "Proxy is shutting down");
+          } finally {
+            try {
+              socket.close();
+            } catch (IOException exception) {
+              Log.wtf(TAG, "Failed to close socket", exception);
+            }
+          }
+        }
+      });
+    }
+  }
+
+  private void serve(@NonNull Socket socket) throws IOException, InterruptedException {
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(socket.getInputStream(), HEADER_CHARSET));
+    Matcher request = REQUEST_PATTERN.matcher(String.valueOf(reader.readLine()));
+    long from = 0;
+    long to = -1; // inclusive, -1 if unbounded
+    String header;
+    while ((header = reader.readLine()) != null && !header.isEmpty()) {
+      Matcher range = RANGE_PATTERN.matcher(header);
+      if (range.matches()) {
+        from = Long.parseLong(range.group(1));
+        to = range.group(2).isEmpty() ? -1 : Long.parseLong(range.group(2));
+      }
+    }
+    OutputStream output = socket.getOutputStream();
+    if (!request.matches()) {
+      writeHeaders(output, "400 Bad Request", null);
+      return;
+    }
+    long id = Long.parseLong(request.group(1));
+    File file;
+    synchronized (files) {
+      file = files.get(id);
+    }
+    if (file == null) {
+      writeHeaders(output, "404 Not Found", null);
+      return;
+    }
+
+    // download could be already running, but not registered in service yet
+    HttpDownload download = getDownload(id, START_TIMEOUT_MS);
+    long total;
+    if (download != null) {
+      if (download.awaitAvailable(0, START_TIMEOUT_MS) <= 0) {
+        writeHeaders(output, "503 Service Unavailable", null);
+        return;
+      }
+      total = download.getTotal();
+    } else if (isDownloaded(id)) {
+      if (!file.exists()) {
+        writeHeaders(output, "404 Not Found", null);
+        return;
+      }
+      total = file.length();
+    } else {
+      // download failed or wasn't started, file (if any) is incomplete
+      writeHeaders(output, "503 Service Unavailable", null);
+      return;
+    }
+
+    if (total >= 0 && (from >= total || (to != -1 && to < from))) {
+      writeHeaders(output, "416 Range Not Satisfiable", "Content-Range: bytes */" + total);
+      return;
+    }
+    if (total >= 0 && (to == -1 || to >= total)) {
+      to = total - 1;
+    }
+    if (total < 0) {
+      // size is unknown until the download ends, so ranges can't be served
+      from = 0;
+      to = -1;
+      writeHeaders(output, "200 OK", "Content-Type: application/octet-stream");
+    } else if (from == 0 && to == total - 1) {
+      writeHeaders(output, "200 OK", "Content-Type: application/octet-stream\r\n"
+          + "Accept-Ranges: bytes\r\nContent-Length: " + total);
+    } else {
+      writeHeaders(output, "206 Partial Content", "Content-Type: application/octet-stream\r\n"
+          + "Accept-Ranges: bytes\r\nContent-Range: bytes " + from + "-" + to + "/" + total
+          + "\r\nContent-Length: " + (to - from + 1));
+    }
+    Log.d(TAG, "Serving episode " + id + " from " + from + " to " + to + " of " + total);
+
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long position = from;
+      while (to == -1 || position <= to) {
+        long available;
+        if (download == null) {
+          available = input.length() - position;
+        } else {
+          available = download.awaitAvailable(position, DATA_TIMEOUT_MS);
+          if (available == 0 && download.isFinished()) {
+            // download succeeded, the file is read directly afterwards
+            download = null;
+            continue;
+          }
+        }
+        if (available < 0 || (available == 0 && download == null)) {
+          break; // download failed or file is over
+        }
+        if (available == 0) {
+          continue;
+        }
+        int length = (int) Math.min(buffer.length, available);
+        if (to != -1) {
+          length = (int) Math.min(length, to - position + 1);
+        }
+        input.seek(position);
+        input.readFully(buffer, 0, length);
+        output.write(buffer, 0, length);
+        position += length;
+      }
+      output.flush();
+    } finally {
+      try {
+        input.close();
+      } catch (IOException exception) {
+        Log.wtf(TAG, "Failed to close stream", exception);
+      }
+    }
+  }
+
+  /**
+   * @return true if download of episode completed, so that its file could be read as is
+   */
+  private boolean isDownloaded(long id) {
+    Cursor cursor = resolver.query(Provider.getUri(Provider.T_EPISODE, id),
+                                   new String[]{Provider.K_EDFIN}, null, null, null);
+    if (cursor == null) {
+      throw new AssertionError("Unexpectedly got null from query");
+    }
+    try {
+      if (!cursor.moveToFirst()) {
+        return false;
+      }
+      int downloaded = cursor.getInt(cursor.getColumnIndexOrThrow(Provider.K_EDFIN));
+      return downloaded == Provider.EDFIN_COMPLETE || downloaded == Provider.EDFIN_PROCESSING;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Nullable
+  private static HttpDownload getDownload(long id, long timeoutMs) throws InterruptedException {
+    long waited = 0;
+    HttpDownload download = HttpDownloadService.getDownload(id);
+    while (download == null && HttpDownloadService.isRunning(id) && waited < timeoutMs) {
+      Thread.sleep(100);
+      waited += 100;
+      download = HttpDownloadService.getDownload(id);
+    }
+    return download;
+  }
+
+  private static void writeHeaders(@NonNull OutputStream output, @NonNull String status,
+                                   @Nullable String headers) throws IOException {
+    String response = "HTTP/1.1 " + status + "\r\nConnection: close\r\n"
+        + (headers == null ? "" : headers + "\r\n") + "\r\n";
+    output.write(response.getBytes(HEADER_CHARSET));
+    output.flush();
+  }
+}
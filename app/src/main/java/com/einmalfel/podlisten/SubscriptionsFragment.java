@@ -4,7 +4,6 @@ import android.content.DialogInterface;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.DefaultItemAnimator;
@@ -41,6 +40,7 @@ public class SubscriptionsFragment extends DebuggableFragment implements
     rv.setLayoutManager(new PredictiveAnimatiedLayoutManager(activity));
     rv.setItemAnimator(new DefaultItemAnimator());
     rv.setAdapter(adapter);
+    ImagePrefetcher.attach(rv, adapter);
     activity.getSupportLoaderManager().initLoader(activityPage.ordinal(), null, this);
     return layout;
   }
@@ -75,7 +75,7 @@ public class SubscriptionsFragment extends DebuggableFragment implements
 
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new CursorLoader(
+    return new DiffCursorLoader(
         activity, Provider.podcastUri, projection, null, null, Provider.K_PATSTAMP + " DESC");
   }
 
@@ -168,7 +168,7 @@ public abstract class CursorRecyclerAdapter<VH
       mRowIDColumn = newCursor.getColumnIndexOrThrow("_ID");
       mDataValid = true;
       // notify the observers about the new cursor
-      notifyDataSetChanged();
+      onCursorSwapped(oldCursor, newCursor);
     } else {
       mRowIDColumn = -1;
       mDataValid = false;
@@ -179,6 +179,17 @@ public abstract class CursorRecyclerAdapter<VH
     return oldCursor;
   }
 
+  /**
+   * Called when a non-null cursor replaces the previous one. Default implementation notifies
+   * that the whole data set has changed, subclasses may dispatch more granular notifications.
+   *
+   * @param oldCursor previously set cursor, may be null
+   * @param newCursor the new cursor
+   */
+  protected void onCursorSwapped(Cursor oldCursor, Cursor newCursor) {
+    notifyDataSetChanged();
+  }
+
   /**
    * <p>Converts the cursor into a CharSequence. Subclasses should override this
    * method to convert their results. The default implementation returns an
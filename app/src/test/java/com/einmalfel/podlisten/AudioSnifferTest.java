@@ -0,0 +1,119 @@
+package com.einmalfel.podlisten;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public class AudioSnifferTest {
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  @Test
+  public void detectsId3Tag() {
+    assertSniffed(AudioSniffer.Container.MP3, bytes(0x49, 0x44, 0x33, 0x04, 0x00, 0x00));
+  }
+
+  @Test
+  public void detectsMpegFrameSync() {
+    assertSniffed(AudioSniffer.Container.MP3, bytes(0xFF, 0xFB, 0x90, 0x64));
+    assertSniffed(AudioSniffer.Container.MP3, bytes(0xFF, 0xF3, 0x48, 0xC4));
+  }
+
+  @Test
+  public void detectsMp4() {
+    assertSniffed(AudioSniffer.Container.MP4, concat(bytes(0x00, 0x00, 0x00, 0x20),
+                                                     ascii("ftypM4A "), bytes(0, 0, 0, 0)));
+  }
+
+  @Test
+  public void detectsOgg() {
+    assertSniffed(AudioSniffer.Container.OGG, concat(ascii("OggS"), bytes(0x00, 0x02)));
+  }
+
+  @Test
+  public void detectsFlac() {
+    assertSniffed(AudioSniffer.Container.FLAC, concat(ascii("fLaC"), bytes(0x00, 0x00, 0x00)));
+  }
+
+  @Test
+  public void detectsRiffWave() {
+    assertSniffed(AudioSniffer.Container.RIFF, concat(ascii("RIFF"), bytes(0x24, 0x08, 0, 0),
+                                                      ascii("WAVEfmt ")));
+  }
+
+  @Test
+  public void detectsHtml() {
+    assertSniffed(AudioSniffer.Container.MARKUP, ascii("<!DOCTYPE html><html></html>"));
+    assertSniffed(AudioSniffer.Container.MARKUP, ascii("<?xml version=\"1.0\"?><rss/>"));
+  }
+
+  @Test
+  public void detectsHtmlAfterBomAndWhitespaces() {
+    assertSniffed(AudioSniffer.Container.MARKUP,
+                  concat(bytes(0xEF, 0xBB, 0xBF), ascii("<html></html>")));
+    assertSniffed(AudioSniffer.Container.MARKUP, ascii("\r\n \t <html></html>"));
+    assertSniffed(AudioSniffer.Container.MARKUP,
+                  concat(bytes(0xEF, 0xBB, 0xBF), ascii("\n\n<html></html>")));
+  }
+
+  @Test
+  public void rejectsWhitespaces() {
+    byte[] head = new byte[4096];
+    Arrays.fill(head, (byte) ' ');
+    head[100] = '\n';
+    head[200] = '\t';
+    assertSniffed(AudioSniffer.Container.MARKUP, head);
+  }
+
+  @Test
+  public void acceptsUnknownData() {
+    assertSniffed(AudioSniffer.Container.UNKNOWN, ascii("some unknown format"));
+    assertSniffed(AudioSniffer.Container.UNKNOWN, bytes(0x00, 0x01, 0x02, 0x03));
+  }
+
+  @Test
+  public void ignoresDataPastLength() {
+    byte[] head = concat(ascii("OggS"), bytes(0, 0));
+    assertEquals(AudioSniffer.Container.UNKNOWN, AudioSniffer.sniff(head, 3));
+  }
+
+  private static void assertSniffed(@NonNull AudioSniffer.Container expected,
+                                    @NonNull byte[] data) {
+    // sniffer gets a partially filled buffer when file is shorter than its head
+    byte[] head = Arrays.copyOf(data, 4096);
+    assertEquals(expected, AudioSniffer.sniff(head, data.length));
+  }
+
+  @NonNull
+  private static byte[] bytes(int... values) {
+    byte[] result = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      result[i] = (byte) values[i];
+    }
+    return result;
+  }
+
+  @NonNull
+  private static byte[] ascii(@NonNull String string) {
+    return string.getBytes(ASCII);
+  }
+
+  @NonNull
+  private static byte[] concat(@NonNull byte[]... parts) {
+    int length = 0;
+    for (byte[] part : parts) {
+      length += part.length;
+    }
+    byte[] result = new byte[length];
+    int offset = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, result, offset, part.length);
+      offset += part.length;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,234 @@
+package com.einmalfel.podlisten;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.support.annotation.NonNull;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs HttpDownload against a loopback HTTP server which supports Range and If-Range and is able
+ * to cut the connection in the middle of response body.
+ */
+public class HttpDownloadTest {
+  private static final long ID = 42;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static class TestContext extends MockContext {
+    @Override
+    public ContentResolver getContentResolver() {
+      return new MockContentResolver();
+    }
+  }
+
+  /**
+   * Serves one file, one request per connection. Records headers of all requests.
+   */
+  private static class Server implements Runnable {
+    private final ServerSocket socket;
+    private final List<Map<String, String>> requests =
+        Collections.synchronizedList(new ArrayList<Map<String, String>>());
+    private volatile byte[] content;
+    private volatile String etag;
+    private volatile int cutAfter = -1; // bytes of body sent before the next response is cut
+
+    Server() throws IOException {
+      socket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+    }
+
+    URL getUrl() throws IOException {
+      return new URL("http://127.0.0.1:" + socket.getLocalPort() + "/episode.mp3");
+    }
+
+    @Override
+    public void run() {
+      while (!socket.isClosed()) {
+        try {
+          Socket connection = socket.accept();
+          try {
+            serve(connection);
+          } catch (IOException ignored) {
+            // client may drop connection, e.g. after 200 response to If-Range request
+          } finally {
+            connection.close();
+          }
+        } catch (IOException ignored) {
+          return; // server socket closed
+        }
+      }
+    }
+
+    private void serve(@NonNull Socket connection) throws IOException {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(connection.getInputStream(), ASCII));
+      reader.readLine(); // request line, it's the same for all requests
+      Map<String, String> headers = new HashMap<>();
+      String line;
+      while ((line = reader.readLine()) != null && !line.isEmpty()) {
+        int separator = line.indexOf(':');
+        headers.put(line.substring(0, separator).trim().toLowerCase(),
+                    line.substring(separator + 1).trim());
+      }
+      requests.add(headers);
+
+      byte[] body = content;
+      String range = headers.get("range");
+      String ifRange = headers.get("if-range");
+      int from = 0;
+      int to = body.length - 1;
+      boolean partial = range != null && (ifRange == null || ifRange.equals(etag));
+      if (partial) {
+        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+        from = Integer.parseInt(bounds[0]);
+        if (!bounds[1].isEmpty()) {
+          to = Integer.parseInt(bounds[1]);
+        }
+      }
+      StringBuilder response = new StringBuilder();
+      if (partial) {
+        response.append("HTTP/1.1 206 Partial Content\r\n")
+                .append("Content-Range: bytes ").append(from).append('-').append(to).append('/')
+                .append(body.length).append("\r\n");
+      } else {
+        response.append("HTTP/1.1 200 OK\r\n");
+      }
+      response.append("Content-Length: ").append(to - from + 1).append("\r\n")
+              .append("ETag: ").append(etag).append("\r\n")
+              .append("Accept-Ranges: bytes\r\n")
+              .append("Connection: close\r\n\r\n");
+      OutputStream output = connection.getOutputStream();
+      output.write(response.toString().getBytes(ASCII));
+      int length = to - from + 1;
+      if (cutAfter >= 0) {
+        length = Math.min(length, cutAfter);
+        cutAfter = -1;
+      }
+      output.write(body, from, length);
+      output.flush();
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private Server server;
+  private ExecutorService executor;
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new Server();
+    new Thread(server, "HttpDownloadTest server").start();
+    executor = Executors.newCachedThreadPool();
+    dir = folder.newFolder();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void resumesInterruptedDownload() throws IOException {
+    byte[] content = randomBytes(300000, 1);
+    server.content = content;
+    server.etag = "\"v1\"";
+    server.cutAfter = 100000;
+
+    runDownload();
+    assertTrue(HttpDownload.getStateFile(dir, ID).exists());
+    assertEquals(1, server.requests.size());
+
+    runDownload();
+    assertArrayEquals(content, readTarget());
+    assertFalse(HttpDownload.getStateFile(dir, ID).exists());
+    assertEquals(2, server.requests.size());
+    Map<String, String> resume = server.requests.get(1);
+    assertEquals("bytes=100000-299999", resume.get("range"));
+    assertEquals("\"v1\"", resume.get("if-range"));
+  }
+
+  @Test
+  public void restartsDownloadIfFileChangedOnServer() throws IOException {
+    server.content = randomBytes(300000, 1);
+    server.etag = "\"v1\"";
+    server.cutAfter = 100000;
+    runDownload();
+    assertTrue(HttpDownload.getStateFile(dir, ID).exists());
+
+    byte[] changed = randomBytes(250000, 2);
+    server.content = changed;
+    server.etag = "\"v2\"";
+    runDownload();
+    assertArrayEquals(changed, readTarget());
+    assertFalse(HttpDownload.getStateFile(dir, ID).exists());
+
+    // resume attempt got 200 instead of 206, so download was restarted from scratch
+    assertEquals(3, server.requests.size());
+    assertEquals("\"v1\"", server.requests.get(1).get("if-range"));
+    assertEquals("bytes=0-", server.requests.get(2).get("range"));
+    assertNull(server.requests.get(2).get("if-range"));
+  }
+
+  private void runDownload() throws IOException {
+    HttpDownload.Listener listener = new HttpDownload.Listener() {
+      @Override
+      public void onFinished(@NonNull HttpDownload download) {}
+    };
+    new HttpDownload(new TestContext(), ID, server.getUrl(), dir, 1, executor, listener).run();
+  }
+
+  @NonNull
+  private byte[] readTarget() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(new File(dir, Long.toString(ID)), "r");
+    try {
+      byte[] result = new byte[(int) file.length()];
+      file.readFully(result);
+      return result;
+    } finally {
+      file.close();
+    }
+  }
+
+  @NonNull
+  private static byte[] randomBytes(int size, long seed) {
+    byte[] result = new byte[size];
+    new Random(seed).nextBytes(result);
+    return result;
+  }
+}
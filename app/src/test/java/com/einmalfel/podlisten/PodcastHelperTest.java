@@ -0,0 +1,110 @@
+package com.einmalfel.podlisten;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+/**
+ * Checks that builder-based formatting gives the same output as String-based implementation it
+ * replaced, which is kept here for reference.
+ */
+public class PodcastHelperTest {
+  private static final String HOURS = "h";
+  private static final String MINUTES = "m";
+
+  @NonNull
+  private static String referenceByteCount(long bytes, boolean si) {
+    int unit = si ? 1000 : 1024;
+    if (bytes < unit) {
+      return bytes + "B";
+    }
+    int exp = (int) (Math.log(bytes) / Math.log(unit));
+    String pre = (si ? "kMGTPE" : "KMGTPE").charAt(exp - 1) + (si ? "" : "i");
+    return String.format(Locale.US, "%d%sB", (int) (bytes / Math.pow(unit, exp)), pre);
+  }
+
+  @NonNull
+  private static String referenceDuration(long milliseconds) {
+    long minutes = milliseconds / 60 / 1000;
+    long hours = minutes / 60;
+    return (hours > 0 ? hours + HOURS : "") + minutes % 60 + MINUTES;
+  }
+
+  @NonNull
+  private static String byteCount(long bytes, boolean si) {
+    StringBuilder builder = new StringBuilder("prefix ");
+    PodcastHelper.appendByteCount(builder, bytes, si);
+    return builder.substring("prefix ".length());
+  }
+
+  @NonNull
+  private static String duration(long milliseconds) {
+    StringBuilder builder = new StringBuilder("prefix ");
+    PodcastHelper.appendDurationMs(builder, milliseconds, HOURS, MINUTES);
+    return builder.substring("prefix ".length());
+  }
+
+  @Test
+  public void byteCountMatchesReferenceAtUnitBoundaries() {
+    for (boolean si : new boolean[]{true, false}) {
+      long unit = si ? 1000 : 1024;
+      // up to terabytes: past that reference implementation is off due to double precision
+      for (long power = 1; power <= unit * unit * unit; power *= unit) {
+        for (long bytes : new long[]{power - 1, power, power + 1, 999 * power, 1000 * power - 1,
+                                     1000 * power, 1023 * power, 1024 * power - 1}) {
+          if (bytes >= 0) {
+            assertEquals(si + " " + bytes, referenceByteCount(bytes, si), byteCount(bytes, si));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void byteCountFormat() {
+    assertEquals("0B", byteCount(0, true));
+    assertEquals("999B", byteCount(999, true));
+    assertEquals("1kB", byteCount(1000, true));
+    assertEquals("1023B", byteCount(1023, false));
+    assertEquals("1KiB", byteCount(1024, false));
+    assertEquals("1023KiB", byteCount(1024 * 1024 - 1, false));
+    assertEquals("1MB", byteCount(1000000, true));
+    assertEquals("1MiB", byteCount(1024 * 1024, false));
+    assertEquals("999MB", byteCount(999999999, true));
+    assertEquals("1GB", byteCount(1000000000, true));
+    assertEquals("999TB", byteCount(999999999999999L, true));
+    assertEquals("7EiB", byteCount(Long.MAX_VALUE, false));
+  }
+
+  @Test
+  public void byteCountAgreesWithStringHelper() {
+    assertEquals(PodcastHelper.humanReadableByteCount(123456789, true),
+                 byteCount(123456789, true));
+    assertEquals(PodcastHelper.humanReadableByteCount(123456789, false),
+                 byteCount(123456789, false));
+  }
+
+  @Test
+  public void durationMatchesReference() {
+    long minute = 60 * 1000;
+    long hour = 60 * minute;
+    for (long milliseconds : new long[]{0, 1, 999, 1000, minute - 1, minute, minute + 1,
+                                        59 * minute, hour - 1, hour, hour + 1, hour + minute,
+                                        10 * hour - 1, 10 * hour, 100 * hour + 59 * minute}) {
+      assertEquals(Long.toString(milliseconds), referenceDuration(milliseconds),
+                   duration(milliseconds));
+    }
+  }
+
+  @Test
+  public void durationFormat() {
+    assertEquals("0m", duration(59999));
+    assertEquals("59m", duration(3599999));
+    assertEquals("1h0m", duration(3600000));
+    assertEquals("1h1m", duration(3660000));
+  }
+}